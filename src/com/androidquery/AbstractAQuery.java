@@ -34,6 +34,7 @@ import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.Editable;
 import android.text.Spanned;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -71,7 +72,9 @@ import android.widget.TextView;
 import com.androidquery.auth.AccountHandle;
 import com.androidquery.callback.AbstractAjaxCallback;
 import com.androidquery.callback.AjaxCallback;
+import com.androidquery.callback.Batch;
 import com.androidquery.callback.BitmapAjaxCallback;
+import com.androidquery.callback.Prefetch;
 import com.androidquery.callback.Transformer;
 import com.androidquery.util.AQUtility;
 import com.androidquery.util.Common;
@@ -95,6 +98,8 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	protected AccountHandle ah;
 	private Transformer trans;
 	private int policy = CACHE_DEFAULT;
+	private boolean viewCache;
+	private SparseArray<View> views;
 
 	protected T create(View view){
 		
@@ -177,9 +182,13 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	private View findView(int id){
 		View result = null;
 		if(root != null){
-			result = root.findViewById(id);
+			result = findView(root, id);
 		}else if(act != null){
-			result = act.findViewById(id);
+			if(viewCache){
+				result = findView(act.getWindow().getDecorView(), id);
+			}else{
+				result = act.findViewById(id);
+			}
 		}
 		return result;
 	}
@@ -189,11 +198,78 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 		View result = findView(path[0]);
 		
 		for(int i = 1; i < path.length && result != null; i++){
-			result = result.findViewById(path[i]);
+			result = findView(result, path[i]);
+		}
+		
+		return result;
+		
+	}
+	
+	private View findView(View parent, int id){
+		
+		if(!viewCache) return parent.findViewById(id);
+		
+		SparseArray<View> cache = getViewCache(parent);
+		
+		View result = cache.get(id);
+		
+		if(result == null || result.getId() != id){
+			result = parent.findViewById(id);
+			if(result != null){
+				cache.put(id, result);
+			}
 		}
 		
 		return result;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private SparseArray<View> getViewCache(View parent){
+		
+		if(parent == root && views != null) return views;
+		
+		SparseArray<View> result = (SparseArray<View>) parent.getTag(AQuery.TAG_VIEW_CACHE);
+		
+		if(result == null){
+			result = new SparseArray<View>();
+			parent.setTag(AQuery.TAG_VIEW_CACHE, result);
+		}
+		
+		if(parent == root) views = result;
+		
+		return result;
+	}
+	
+	/**
+	 * Cache the views found with id() and find() on the view they are found under, so repeated lookups of the same id or id path are not searched again.
+	 * 
+	 * The cache is kept on the root view until the AQuery object is recycled to it, as the views of a recycled list row can change between binds. 
+	 * Should only be used when views are not added or removed after the lookups. Default is false.
+	 *
+	 * @param cache use the view cache
+	 * @return self
+	 */
+	public T viewCache(boolean cache){
+		this.viewCache = cache;
+		return self();
+	}
+	
+	/**
+	 * Clear the view cache of the root view, such as when views are added or removed. 
+	 *
+	 * @return self
+	 */
+	public T clearViewCache(){
 		
+		if(root != null){
+			root.setTag(AQuery.TAG_VIEW_CACHE, null);
+		}else if(act != null){
+			act.getWindow().getDecorView().setTag(AQuery.TAG_VIEW_CACHE, null);
+		}
+		
+		views = null;
+		
+		return self();
 	}
 	
 	
@@ -206,7 +282,9 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	 */
 	public T find(int id){
 		View view = findView(id);
-		return create(view);
+		T result = create(view);
+		if(result != null) result.viewCache(viewCache);
+		return result;
 	}
 	
 	/**
@@ -240,6 +318,7 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	 * Recycle this AQuery object. 
 	 * 
 	 * The method is designed to avoid recreating an AQuery object repeatedly, such as when in list adapter getView method.
+	 * The view cache of the new root is cleared.
 	 *
 	 * @param root The new root of the recycled AQuery.
 	 * @return self
@@ -247,6 +326,10 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 	public T recycle(View root){
 		this.root = root;
 		this.view = root;
+		this.views = null;
+		if(root != null){
+			root.setTag(AQuery.TAG_VIEW_CACHE, null);
+		}
 		reset();
 		this.context = null;
 		return self();
@@ -1432,6 +1515,28 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 		return common;
 	}
 	
+	/**
+	 * Prefetch the images of list items that are about to be scrolled into view, so they are already in memcache when shown.
+	 * The prefetch window follows the scroll direction and grows with the scroll velocity. Prefetches that fall out of the window are aborted.
+	 * 
+	 * Method must have signature of String method(int position), returning the image url of the item or null if there's none.
+	 * The targetWidth should match the one used in the getView method of the adapter.
+	 *
+	 * @param handler The handler that has the public callback method.
+	 * @param method The method name of the callback.
+	 * @param targetWidth Target width for down sampling. 0 = no downsampling.
+	 * @param count The minimum number of items to prefetch ahead of the visible items.
+	 * @return self
+	 */
+	public T prefetch(Object handler, String method, int targetWidth, int count){
+		
+		if(view instanceof AbsListView){
+			setScrollListener().prefetch(handler, method, targetWidth, count);
+		}
+		
+		return self();
+	}
+	
 	/**
 	 * Register an on scroll listener to a list view, grid view (or any AbsListView).
 	 * 
@@ -1752,10 +1857,7 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 		
 		 */
 		
-		cb.auth(ah);
-		cb.progress(progress);
-		cb.transformer(trans);
-		cb.policy(policy);
+		setup(cb);
 		
 		if(act != null){
 			cb.async(act);
@@ -1768,6 +1870,15 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 		return self();
 	}	
 	
+	private void setup(AbstractAjaxCallback<?, ?> cb){
+		
+		cb.auth(ah);
+		cb.progress(progress);
+		cb.transformer(trans);
+		cb.policy(policy);
+		
+	}
+	
 	private void reset(){
 		
 		ah = null;
@@ -1941,6 +2052,44 @@ public abstract class AbstractAQuery<T extends AbstractAQuery<T>> implements Con
 		return ajax(url, byte[].class, expire, null, null);		
 	}
 	
+	/**
+	 * Prefetch a group of urls to the file cache, and images to the bitmap memcache, as background requests.
+	 *
+	 * @param prefetch the prefetch group, which can be cancelled with Prefetch.cancel()
+	 * @return self
+	 */
+	public T prefetch(Prefetch prefetch){
+		
+		prefetch.async(getContext());
+		
+		return self();
+	}
+	
+	/**
+	 * Run a group of ajax requests concurrently, with one callback when all of them are completed.
+	 * 
+	 * Each request gets the auth, progress, transformer and policy set on this AQuery, as with ajax().
+	 *
+	 * @param batch the batch, which can be cancelled with Batch.cancel()
+	 * @return self
+	 */
+	public T batch(Batch batch){
+		
+		for(int i = 0; i < batch.size(); i++){
+			setup(batch.get(i));
+		}
+		
+		if(act != null){
+			batch.async(act);
+		}else{
+			batch.async(getContext());
+		}
+		
+		reset();
+		
+		return self();
+	}
+	
 	
 	/**
 	 * Stop all ajax activities. Should be called when current activity is to be destroy.
@@ -16,33 +16,52 @@
 
 package com.androidquery.callback;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
@@ -52,17 +71,25 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ManagedClientConnection;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.scheme.SocketFactory;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
@@ -71,6 +98,7 @@ import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.xmlpull.v1.XmlPullParser;
@@ -80,6 +108,8 @@ import android.app.Dialog;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.net.Uri;
 import android.util.Xml;
 import android.view.View;
@@ -88,9 +118,12 @@ import com.androidquery.AQuery;
 import com.androidquery.auth.AccountHandle;
 import com.androidquery.auth.GoogleHandle;
 import com.androidquery.util.AQUtility;
+import com.androidquery.util.CacheStats;
 import com.androidquery.util.Common;
 import com.androidquery.util.Constants;
+import com.androidquery.util.Metrics;
 import com.androidquery.util.PredefinedBAOS;
+import com.androidquery.util.Trace;
 import com.androidquery.util.XmlDom;
 
 /**
@@ -102,6 +135,9 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	private static int NET_TIMEOUT = 30000;
 	private static String AGENT = null;
 	private static int NETWORK_POOL = 4;
+	private static int BACKGROUND_POOL = 2;
+	private static int DECODE_POOL = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private static long DECODE_BUDGET = Runtime.getRuntime().maxMemory() / 4;
 	private static boolean GZIP = true;
 	private static boolean REUSE_CLIENT = true;
 	
@@ -133,9 +169,14 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 	private long expire;
 	private String encoding = "UTF-8";
+	private String headerCharset;
 	private WeakReference<Activity> act;
 	
 	private boolean uiCallback = true;
+	private volatile boolean background;
+	private volatile Thread worker;
+	private final AtomicBoolean queued = new AtomicBoolean();
+	private volatile boolean decoding;
 	
 	@SuppressWarnings("unchecked")
 	private K self(){
@@ -157,6 +198,27 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		NET_TIMEOUT = timeout;
 	}
 	
+	/**
+	 * Sets the default retry policy of all requests. Default is null, which doesn't retry.
+	 *
+	 * @param policy the retry policy
+	 */
+	public static void setRetryPolicy(RetryPolicy policy){
+		RETRY = policy;
+	}
+	
+	/**
+	 * Fail requests to a host fast for a while, after a number of consecutive network errors or 5xx responses.
+	 * 
+	 * Requests failed by an open circuit have NETWORK_ERROR code and "circuit open" message. See CircuitBreaker.
+	 *
+	 * @param failures the consecutive failures to open the circuit, 0 to disable
+	 * @param openTime the time in milliseconds before a request is let through to test the host
+	 */
+	public static void setCircuitBreaker(int failures, long openTime){
+		CircuitBreaker.setup(failures, openTime);
+	}
+	
 	/**
 	 * Sets the agent.
 	 *
@@ -175,6 +237,108 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		GZIP = gzip;
 	}
 	
+	private static Map<String, ContentDecoder> decoders = defaultDecoders();
+	private static String acceptEncoding = "gzip, deflate";
+	
+	private static Map<String, ContentDecoder> defaultDecoders(){
+		
+		Map<String, ContentDecoder> result = new LinkedHashMap<String, ContentDecoder>();
+		
+		result.put("gzip", new ContentDecoder() {
+			
+			@Override
+			public InputStream decode(InputStream is) throws IOException {
+				return new GZIPInputStream(is);
+			}
+		});
+		
+		result.put("deflate", new ContentDecoder() {
+			
+			@Override
+			public InputStream decode(InputStream is) throws IOException {
+				return inflate(is);
+			}
+		});
+		
+		return result;
+	}
+	
+	//deflate should be zlib wrapped, but some servers send raw deflate data
+	private static InputStream inflate(InputStream is) throws IOException{
+		
+		PushbackInputStream pis = new PushbackInputStream(is, 2);
+		
+		int b0 = pis.read();
+		int b1 = pis.read();
+		
+		if(b1 >= 0) pis.unread(b1);
+		if(b0 >= 0) pis.unread(b0);
+		
+		boolean zlib = b0 >= 0 && b1 >= 0 && (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+		
+		return new InflaterInputStream(pis, new Inflater(!zlib));
+	}
+	
+	/**
+	 * Register a decoder for a response content encoding, and advertise it in the Accept-Encoding header.
+	 * 
+	 * gzip and deflate are supported by default. Pass null to remove a decoder.
+	 *
+	 * @param encoding the content encoding, such as br
+	 * @param decoder the decoder
+	 */
+	public static synchronized void setDecoder(String encoding, ContentDecoder decoder){
+		
+		Map<String, ContentDecoder> result = new LinkedHashMap<String, ContentDecoder>(decoders);
+		
+		encoding = encoding.trim().toLowerCase(Locale.US);
+		
+		if(decoder == null){
+			result.remove(encoding);
+		}else{
+			result.put(encoding, decoder);
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		for(String name: result.keySet()){
+			if(sb.length() > 0) sb.append(", ");
+			sb.append(name);
+		}
+		
+		decoders = result;
+		acceptEncoding = sb.toString();
+	}
+	
+	//returns the decoded stream, or null if there is nothing to decode or an encoding is not supported
+	private static InputStream decode(String encoding, InputStream is) throws IOException{
+		
+		Map<String, ContentDecoder> decoders = AbstractAjaxCallback.decoders;
+		
+		List<ContentDecoder> chain = new ArrayList<ContentDecoder>();
+		
+		String[] codings = encoding.split(",");
+		
+		//codings are listed in the order they are applied, check all of them before the stream is touched
+		for(int i = codings.length - 1; i >= 0; i--){
+			
+			String coding = codings[i].trim().toLowerCase(Locale.US);
+			if(coding.length() == 0 || coding.equals("identity")) continue;
+			
+			ContentDecoder decoder = decoders.get(coding);
+			if(decoder == null) return null;
+			
+			chain.add(decoder);
+		}
+		
+		if(chain.isEmpty()) return null;
+		
+		for(ContentDecoder decoder: chain){
+			is = decoder.decode(is);
+		}
+		
+		return is;
+	}
+	
 	/**
 	 * Sets the default static transformer. This transformer should be stateless.
 	 * If state is required, use the AjaxCallback.transformer() or AQuery.transformer().
@@ -322,6 +486,18 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return self();
 	}
 	
+	/**
+	 * Indicate the ajax request is a background request, such as a prefetch. Background requests run on separate low priority threads 
+	 * so they do not hold up regular requests. Default is false.
+	 *
+	 * @param background run as a background request
+	 * @return self
+	 */
+	public K background(boolean background){
+		this.background = background;
+		return self();
+	}
+	
 	/**
 	 * The expire duation for filecache. If a cached copy will be served if a cached file exists within current time minus expire duration.
 	 *
@@ -376,6 +552,52 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return self();
 	}
 	
+	/**
+	 * Compress the body of post requests with gzip or deflate, the server must accept the Content-Encoding.
+	 * 
+	 * Bodies smaller than 512 bytes are sent uncompressed. Multipart requests are not compressed.
+	 * 
+	 * @param encoding gzip, deflate, or null for no compression
+	 * @return self
+	 */
+	public K requestEncoding(String encoding){
+		
+		if(encoding != null && !"gzip".equalsIgnoreCase(encoding) && !"deflate".equalsIgnoreCase(encoding)){
+			throw new IllegalArgumentException("Unsupported request encoding: " + encoding);
+		}
+		
+		this.requestEncoding = encoding;
+		return self();
+	}
+	
+	/**
+	 * Downscale and recompress image File params of multipart requests before they are sent.
+	 * 
+	 * JPEG and PNG images larger than the target dimension are resized so their longer side fits it, and compressed in memory 
+	 * in the network thread to the same format, so the file name still matches the content.
+	 * Other files, including images of other formats, are sent as is.
+	 * 
+	 * @param dimension the max width or height in pixels
+	 * @param quality the jpeg quality from 0 to 100
+	 * @return self
+	 */
+	public K uploadImage(int dimension, int quality){
+		this.uploadDimension = dimension;
+		this.uploadQuality = quality;
+		return self();
+	}
+	
+	
+	/**
+	 * Retry failed requests with backoff. Overrides the default set with setRetryPolicy().
+	 * 
+	 * @param policy the retry policy, null to use the default
+	 * @return self
+	 */
+	public K retry(RetryPolicy policy){
+		this.retryPolicy = policy;
+		return self();
+	}
 	
 	private HttpHost proxy;
 	public K proxy(String host, int port){	
@@ -456,12 +678,12 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		
 		completed = true;
 		
-		if(isActive()){
+		Trace.begin("callback", Trace.UI, url);
+		
+		if(isActive() && !abort){
 		
 			if(callback != null){	
-				Object handler = getHandler();
-				Class<?>[] AJAX_SIG = {String.class, type, AjaxStatus.class};				
-				AQUtility.invokeHandler(handler, callback, true, true, AJAX_SIG, DEFAULT_SIG, url, result, status);					
+				invokeHandler();
 			}else{		
 				try{
 					callback(url, result, status);
@@ -472,7 +694,19 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		
 		}
 		
+		status.lap(AjaxStatus.TIME_CALLBACK);
+		
+		notifyListener();
+		
+		Trace.end("callback", Trace.UI);
+		
+		Trace.begin("cache_write", Trace.IO, url);
 		filePut();
+		Trace.end("cache_write", Trace.IO);
+		
+		status.lap(AjaxStatus.TIME_CACHE_WRITE);
+		
+		record();
 		
 		status.close();
 		
@@ -480,6 +714,140 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		AQUtility.debugNotify();
 	}
 	
+	private static final String[] SOURCES = {"", "network", "datastore", "file", "memory", "device"};
+	private static final String[] STAGES = {"queue", "connect", "first_byte", "download", "transform", "cache_write", "callback"};
+	
+	private void record(){
+		
+		if(!Metrics.isEnabled()) return;
+		
+		int source = status.getSource();
+		long duration = status.getDuration();
+		
+		if(source > 0 && source < SOURCES.length){
+			Metrics.record("source." + SOURCES[source], duration);
+		}
+		
+		if(source == AjaxStatus.NETWORK){
+			String host = getHost(url);
+			if(host != null){
+				Metrics.record("host." + host, duration);
+			}
+		}
+		
+		for(int i = 0; i < STAGES.length; i++){
+			long time = status.getTiming(i);
+			if(time > 0){
+				Metrics.record("stage." + STAGES[i], time);
+			}
+		}
+	}
+	
+	private static String getHost(String url){
+		
+		if(url == null) return null;
+		
+		int start = url.indexOf("://");
+		if(start < 0) return null;
+		start += 3;
+		
+		int end = start;
+		while(end < url.length()){
+			char c = url.charAt(end);
+			if(c == '/' || c == ':' || c == '?' || c == '#') break;
+			end++;
+		}
+		
+		return url.substring(start, end);
+	}
+	
+	private Runnable listener;
+	
+	//notified once when the request is completed, used by request groups such as Prefetch.
+	//a listener already set is kept and notified first, so a request can belong to more than one group
+	private void invokeHandler(){
+		Object handler = getHandler();
+		Class<?>[] AJAX_SIG = {String.class, type, AjaxStatus.class};				
+		AQUtility.invokeHandler(handler, callback, true, true, AJAX_SIG, DEFAULT_SIG, url, result, status);
+	}
+	
+	//completes a request served by another request for the same url, which writes the cache and records the metrics
+	void deliver(T result, AjaxStatus status){
+		
+		this.result = result;
+		this.status = status;
+		
+		showProgress(false);
+		completed = true;
+		
+		if(isActive() && !abort && callback != null){
+			invokeHandler();
+		}
+		
+		notifyListener();
+		wake();
+	}
+	
+	void listener(final Runnable listener){
+		
+		final Runnable previous = this.listener;
+		
+		if(previous == null){
+			this.listener = listener;
+			return;
+		}
+		
+		this.listener = new Runnable() {
+			
+			@Override
+			public void run() {
+				try{
+					previous.run();
+				}catch(Exception e){
+					AQUtility.report(e);
+				}
+				listener.run();
+			}
+		};
+	}
+	
+	void notifyListener(){
+		
+		Runnable l = listener;
+		listener = null;
+		
+		if(l != null){
+			try{
+				l.run();
+			}catch(Exception e){
+				AQUtility.report(e);
+			}
+		}
+	}
+	
+	//the handler is skipped, but listeners such as Batch and OfflineQueue are told the request is over
+	private void aborted(){
+		
+		clear();
+		
+		status.code(AjaxStatus.NETWORK_ERROR).message("aborted").done();
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				showProgress(false);
+				completed = true;
+				
+				notifyListener();
+				
+				wake();
+				AQUtility.debugNotify();
+			}
+		});
+	}
+	
 	private void wake(){
 		
 		if(!blocked) return;
@@ -611,21 +979,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			
 			if(type.equals(String.class)){
 				
-				String result = null;
-				
-				if(status.getSource() == AjaxStatus.NETWORK){
-					AQUtility.debug("network");
-					result = correctEncoding(data, encoding, status);
-				}else{
-					AQUtility.debug("file");
-					try {    		
-			    		result = new String(data, encoding);
-					} catch (Exception e) {	  		
-						AQUtility.debug(e);
-					}
-				}
-				
-				return (T) result;
+				return (T) correctEncoding(data, encoding, status);
 			}
 			
 			if(type.equals(XmlDom.class)){
@@ -694,19 +1048,34 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return null;
 	}
 	
+	//bytes inspected for a charset declaration, html parsers look for the meta tag within the first 1024 bytes
+	private static final int CHARSET_HEAD = 1024;
+	private static final Pattern CHARSET_PATTERN = Pattern.compile("<(?:meta[^>]+charset|\\?xml[^>]+encoding)\\s*=\\s*[\"']?([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+	
 	//This is an adhoc way to get charset without html parsing library, might not cover all cases.
-	private String getCharset(String html){
+	private static String sniffCharset(byte[] data){
 		
-		String pattern = "<meta [^>]*http-equiv[^>]*\"Content-Type\"[^>]*>";
+		if(data.length >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB && (data[2] & 0xFF) == 0xBF){
+			return "utf-8";
+		}
 		
-		Pattern p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);		
-		Matcher m = p.matcher(html);
+		if(data.length >= 2 && (((data[0] & 0xFF) == 0xFE && (data[1] & 0xFF) == 0xFF) || ((data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xFE))){
+			return "utf-16";
+		}
 		
-		if(!m.find()) return null;
+		//declarations are ascii, one char per byte is enough to find them
+		String head;
+		try{
+			head = new String(data, 0, Math.min(data.length, CHARSET_HEAD), "ISO-8859-1");
+		}catch(UnsupportedEncodingException e){
+			return null;
+		}
+		
+		Matcher m = CHARSET_PATTERN.matcher(head);
 		
-		String tag = m.group();
+		if(!m.find()) return null;
 		
-		return parseCharset(tag);
+		return m.group(1);
 	}
 	
 	private String parseCharset(String tag){
@@ -718,6 +1087,27 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return charset;
 	}
 	
+	private File getCharsetFile(){
+		if(cacheDir == null) return null;
+		return AQUtility.getCacheFile(cacheDir, getCacheUrl() + "#charset");
+	}
+	
+	//the charset file also marks string entries that keep the original bytes, it holds the charset from the 
+	//response header as the header is not cached, or nothing when the charset is sniffed from the bytes.
+	//returns null for entries cached before it was kept, their bytes were rewritten to utf-8
+	private String readCharset(){
+		
+		File file = getCharsetFile();
+		if(file == null || !file.exists()) return null;
+		
+		try{
+			return new String(AQUtility.toBytes(new FileInputStream(file)), "utf-8");
+		}catch(Exception e){
+			AQUtility.debug(e);
+			return null;
+		}
+	}
+	
 	private String correctEncoding(byte[] data, String target, AjaxStatus status){
 		
 		String result = null;
@@ -727,24 +1117,41 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 				return new String(data, target);
 			}
 			
-			String header = parseCharset(status.getHeader("Content-Type"));
-			AQUtility.debug("parsing header", header);
-			if(header != null){
-				return new String(data, header);
+			String charset = null;
+			
+			if(status.getSource() == AjaxStatus.NETWORK){
+				charset = parseCharset(status.getHeader("Content-Type"));
+				if(charset != null && !charset.equalsIgnoreCase(sniffCharset(data))){
+					headerCharset = charset;
+				}
+			}else if(status.getSource() == AjaxStatus.FILE){
+				charset = readCharset();
+				if(charset == null){
+					charset = "utf-8";
+				}else if(charset.length() == 0){
+					charset = null;
+				}
+			}
+			
+			if(charset == null){
+				charset = sniffCharset(data);
 			}
 			
-			result = new String(data, "utf-8");
+			AQUtility.debug("charset", charset);
 			
-			String charset = getCharset(result);
+			if(charset == null || !Charset.isSupported(charset)){
+				charset = "utf-8";
+			}
 			
-			AQUtility.debug("parsing needed", charset);
+			int offset = 0;
 			
-			if(charset != null && !"utf-8".equalsIgnoreCase(charset)){	
-				AQUtility.debug("correction needed", charset);
-				result = new String(data, charset);
-				status.data(result.getBytes("utf-8"));
+			//skip the utf-8 byte order mark, utf-16 decoding consumes its own
+			if("utf-8".equalsIgnoreCase(charset) && data.length >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB && (data[2] & 0xFF) == 0xBF){
+				offset = 3;
 			}
 			
+			result = new String(data, offset, data.length - offset, charset);
+			
 		}catch(Exception e){
 			AQUtility.report(e);
 		}
@@ -758,6 +1165,27 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		return null;
 	}
 	
+	/**
+	 * Test if the result can be derived from other memory cached objects, such as a larger size of the same image.
+	 * Called in a network thread after a memory cache miss, should not do any heavy work.
+	 *
+	 * @param url the url
+	 * @return derivable
+	 */
+	protected boolean memDerivable(String url){
+		return false;
+	}
+	
+	/**
+	 * Derive the result from other memory cached objects. Called in a decode thread if memDerivable() returns true.
+	 *
+	 * @param url the url
+	 * @return the result, null to fetch it instead
+	 */
+	protected T memDerive(String url){
+		return null;
+	}
+	
 	
 	protected void memPut(String url, T object){
 	}
@@ -818,8 +1246,19 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			result = null;
 		}
 		
+		fetched = false;
+		fileTried = false;
+		deriveTried = false;
+		derive = false;
+		cacheFile = null;
+		headerCharset = null;
+		attempt = 0;
+		limited = false;
+		
 		showProgress(true);
 		
+		status.mark();
+		
 		if(ah != null){
 			
 			if(!ah.authenticated()){
@@ -834,6 +1273,27 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	}
 	
 	
+	private volatile boolean abort;
+	
+	/**
+	 * Abort the ajax request. Work that is not yet started is skipped and the callback will not be invoked.
+	 * 
+	 * Should be called in the main ui thread.
+	 */
+	public void abort(){
+		abort = true;
+		wake();
+	}
+	
+	/**
+	 * Test if the ajax request is aborted.
+	 *
+	 * @return aborted
+	 */
+	public boolean isAborted(){
+		return abort;
+	}
+	
 	private boolean isActive(){
 		
 		if(act == null) return true;
@@ -870,7 +1330,7 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		}else{
 		
 			cacheDir = AQUtility.getCacheDir(context, policy);	
-			execute(this);
+			fetchStage();
 		}
 	}
 	
@@ -890,21 +1350,25 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		
 		if(!status.getDone()){
 			
-			try{			
-				backgroundWork();			
-			}catch(Throwable e){
-				AQUtility.debug(e);
-				status.code(AjaxStatus.NETWORK_ERROR).done();
+			//a stage promoted to the network threads is still queued on the background threads too, only the first run takes it
+			if(!queued.compareAndSet(true, false)) return;
+			
+			boolean low = background;
+			
+			if(low){
+				worker = Thread.currentThread();
 			}
 			
-			if(!status.getReauth()){
-				//if doesn't need to reauth
-				if(uiCallback){
-					AQUtility.post(this);
-				}else{
-					afterWork();
+			try{
+				stageWork();
+			}finally{
+				if(low){
+					if(worker == Thread.currentThread()) worker = null;
+					//a promotion only raises the background thread for the stage it was running
+					Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
 				}
 			}
+			
 		}else{
 			afterWork();
 		}
@@ -914,51 +1378,224 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		
 	}
 	
-	private void backgroundWork(){
-	
-		
+	private void stageWork(){
 		
-		if(!refresh){
-		
-			if(fileCache){	
-				fileWork();			
+		if(abort){
+			
+			//resumed by the adaptive limit without taking the slot it was handed, pass it on
+			if(limited){
+				limited = false;
+				AdaptiveLimit.skip(getHost(url));
 			}
+			
+			aborted();
+			return;
 		}
 		
-		if(result == null){
-			datastoreWork();			
-		}
-		
-		if(result == null){
-			networkWork();
-		}
-		
-		
-	}
-	
-	private String getCacheUrl(){
-		if(ah != null){
-			return ah.getCacheUrl(url);
-		}
-		return url;
-	}
-	
-	private void fileWork(){
+		try{
+			
+			status.lap(AjaxStatus.TIME_QUEUE);
+			
+			if(!fetched){
+				
+				fetched = true;
+				
+				boolean deferred;
+				
+				Trace.begin("fetch", Trace.AJAX, url);
+				try{
+					deferred = backgroundWork();
+				}finally{
+					Trace.end("fetch", Trace.AJAX);
+				}
+				
+				if(deferred){
+					//continued by the batch transport with batched(), or by refetch()
+					return;
+				}
+				
+				if(!status.getDone() && !status.getReauth()){
+					//hand over to the decode threads so network threads are not held by cpu bound transforms
+					status.mark();
+					decodeStage();
+					return;
+				}
+				
+			}else{
+				
+				transformWork();
+				
+				if(!fetched){
+					//cached file cannot be transformed, go back to network threads
+					status.mark();
+					fetchStage();
+					return;
+				}
+			}
+			
+		}catch(Throwable e){
+			AQUtility.debug(e);
+			status.code(AjaxStatus.NETWORK_ERROR).done();
+		}
 		
-		File file = accessFile(cacheDir, getCacheUrl());
+		status.mark();
 		
-		//if file exist
-		if(file != null){
-			//convert
-			status.source(AjaxStatus.FILE);
-			result = fileGet(url, file, status);
+		if(!status.getReauth()){
+			//if doesn't need to reauth
+			if(uiCallback){
+				//batched with other completions of the same frame
+				AQUtility.postFrame(this);
+			}else{
+				afterWork();
+			}
+		}
+	}
+	
+	private boolean fetched;
+	private boolean fileTried;
+	private boolean deriveTried;
+	private boolean derive;
+	private File cacheFile;
+	
+	//returns true if the request is continued later by another thread
+	private boolean backgroundWork(){
+	
+		if(memCache && !deriveTried){
 			
+			deriveTried = true;
 			
-			//if result is ok
-			if(result != null){
-				status.time(new Date(file.lastModified())).done();
+			//derived in the decode threads
+			if(memDerivable(url)){
+				derive = true;
+				return false;
 			}
 		}
+		
+		if(!refresh && !fileTried){
+		
+			if(fileCache){	
+				fileWork();			
+			}
+		}
+		
+		if(cacheFile == null){
+			datastoreWork();			
+		}
+		
+		if(cacheFile == null && result == null){
+			return networkWork(true) || retryWork();
+		}
+		
+		return false;
+	}
+	
+	private void transformWork(){
+		
+		File file = cacheFile;
+		byte[] data = status.getData();
+		
+		long cost = decodeCost(data, file);
+		
+		Trace.begin("decode_wait", Trace.AJAX, url);
+		acquire(cost);
+		Trace.end("decode_wait", Trace.AJAX);
+		
+		Trace.begin("transform", Trace.AJAX, url);
+		
+		//waiting for the decode budget is queue time
+		status.lap(AjaxStatus.TIME_QUEUE);
+		
+		try{
+			
+			if(derive){
+				
+				derive = false;
+				result = memDerive(url);
+				
+				if(result != null){
+					status.source(AjaxStatus.MEMORY).done();
+				}else{
+					fetched = false;
+				}
+				
+				return;
+			}
+		
+			if(file != null){
+				
+				cacheFile = null;
+				result = fileGet(url, file, status);
+				
+				//if result is ok
+				if(result != null){
+					status.time(new Date(file.lastModified())).done();
+				}else{
+					fileTried = true;
+					fetched = false;
+				}
+				
+				return;
+			}
+			
+			try{
+				result = transform(url, data, status);
+			}catch(Exception e){
+				AQUtility.debug(e);
+			}
+			
+			if(result == null && data != null){
+				status.code(AjaxStatus.TRANSFORM_ERROR).message("transform error");			
+			}
+			
+			lastStatus = status.getCode();
+			status.done();
+		
+		}finally{
+			status.lap(AjaxStatus.TIME_TRANSFORM);
+			release(cost);
+			Trace.end("transform", Trace.AJAX);
+		}
+		
+	}
+	
+	/**
+	 * The estimated transient memory in bytes required to transform the data or file.
+	 * Decode threads wait when the total of running transforms would exceed the decode budget.
+	 *
+	 * @param data the network data
+	 * @param file the cached file, or the file holding the network data
+	 * @return the cost
+	 */
+	protected long decodeCost(byte[] data, File file){
+		
+		if(needInputStream()) return 0;
+		if(data != null) return data.length;
+		if(file != null) return file.length();
+		
+		return 0;
+	}
+	
+	private String getCacheUrl(){
+		if(ah != null){
+			return ah.getCacheUrl(url);
+		}
+		return url;
+	}
+	
+	private void fileWork(){
+		
+		Trace.begin("file_lookup", Trace.IO, url);
+		File file = accessFile(cacheDir, getCacheUrl());
+		Trace.end("file_lookup", Trace.IO);
+		
+		//if file exist, convert in the decode threads
+		if(file != null){
+			status.source(AjaxStatus.FILE);
+			cacheFile = file;
+			CacheStats.get(CacheStats.FILE).hit(file.length());
+		}else{
+			CacheStats.get(CacheStats.FILE).miss();
+		}
 	}
 	
 	private void datastoreWork(){
@@ -971,20 +1608,56 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	}
 	
 	private boolean reauth;
-	private void networkWork(){
+	private boolean limited;
+	
+	//returns true if the request is deferred to the batch transport or the adaptive limit
+	private boolean networkWork(boolean defer){
 		
 		if(url == null){
 			status.code(AjaxStatus.NETWORK_ERROR).done();
-			return;
+			return false;
 		}
 		
+		if(defer){
+			BatchTransport transport = getBatchTransport();
+			if(transport != null){
+				transport.enqueue(this);
+				return true;
+			}
+		}
 		
-		byte[] data = null;
+		String host = getHost(url);
+		
+		if(defer){
+			
+			//requests resumed by the limit keep their place at the head of the queue
+			boolean resumed = limited;
+			limited = true;
+			
+			if(!AdaptiveLimit.acquire(host, this, resumed)){
+				return true;
+			}
+			
+			limited = false;
+		}
+		
+		//asked only once the request holds a slot, a half open probe queued by the limit would be refused when resumed
+		if(!CircuitBreaker.allow(host)){
+			if(defer){
+				AdaptiveLimit.release(host, null);
+			}
+			status.code(AjaxStatus.NETWORK_ERROR).message(CIRCUIT_OPEN);
+			return false;
+		}
+		
+		Trace.begin("network", Trace.AJAX, url);
 		
 		try{
 			
 			network();
 			
+			recordNetwork();
+			
 			if(ah != null && ah.expired(this, status) && !reauth){
 				AQUtility.debug("reauth needed", status.getMessage());	
 				reauth = true;
@@ -992,30 +1665,224 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 					network();
 				}else{
 					status.reauth(true);				
-					return;
+					return false;
 				}
 			}
 										
-			data = status.getData();
-			
 		}catch(Exception e){
 			AQUtility.debug(e);
 			status.code(AjaxStatus.NETWORK_ERROR).message("network error");
+		}finally{
+			Trace.end("network", Trace.AJAX);
+			if(defer){
+				AdaptiveLimit.release(host, status);
+			}
+			//every request let through is reported, including the reauth return, or a half open probe never ends
+			CircuitBreaker.result(host, status.getCode());
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Sends a deferred request to the network threads again, skipping the file cache.
+	 */
+	void refetch(){
+		
+		fetched = false;
+		fileTried = true;
+		
+		status.mark();
+		fetchStage();
+	}
+	
+	private static final String CIRCUIT_OPEN = "circuit open";
+	private static RetryPolicy RETRY;
+	private RetryPolicy retryPolicy;
+	private int attempt;
+	
+	//returns true if a retry is scheduled
+	private boolean retryWork(){
+		
+		RetryPolicy policy = retryPolicy != null ? retryPolicy : RETRY;
+		
+		if(policy == null || abort || status.getReauth()) return false;
+		if(CIRCUIT_OPEN.equals(status.getMessage())) return false;
+		
+		int code = status.getCode();
+		if(code == 200) return false;
+		
+		if(!policy.shouldRetry(attempt, code, params == null)) return false;
+		
+		long delay = policy.getDelay(attempt, parseRetryAfter(status.getHeader("Retry-After")));
+		attempt++;
+		
+		AQUtility.debug("retry " + attempt + " in " + delay, url);
+		
+		if(Metrics.isEnabled()){
+			String host = getHost(url);
+			if(host != null){
+				Metrics.record("retry." + host, delay);
+			}
 		}
 		
+		//no thread is held while waiting, the request goes back to the network threads when the timer fires
+		AQUtility.postDelayed(new Runnable() {
+			
+			@Override
+			public void run() {
+				refetch();
+			}
+		}, delay);
+		
+		return true;
+	}
+	
+	private static long parseRetryAfter(String value){
+		
+		if(value == null) return 0;
 		
 		try{
-			result = transform(url, data, status);
-		}catch(Exception e){
-			AQUtility.debug(e);
+			return Long.parseLong(value.trim());
+		}catch(NumberFormatException e){
+			//http date is not supported
+			return 0;
 		}
+	}
+	
+	private static Map<String, BatchTransport> transports = new HashMap<String, BatchTransport>();
+	
+	/**
+	 * Combine GET requests to a host into requests to its batch endpoint. Pass null to stop combining requests to the host.
+	 *
+	 * @param host the host, such as api.example.com
+	 * @param transport the transport
+	 */
+	public static synchronized void setBatchTransport(String host, BatchTransport transport){
 		
-		if(result == null && data != null){
-			status.code(AjaxStatus.TRANSFORM_ERROR).message("transform error");			
+		Map<String, BatchTransport> result = new HashMap<String, BatchTransport>(transports);
+		
+		if(transport == null){
+			result.remove(host);
+		}else{
+			result.put(host, transport);
 		}
 		
-		lastStatus = status.getCode();
-		status.done();
+		transports = result;
+	}
+	
+	private BatchTransport getBatchTransport(){
+		
+		Map<String, BatchTransport> transports = AbstractAjaxCallback.transports;
+		
+		if(transports.isEmpty()) return null;
+		//a batch part carries only the url and headers, cookies and the proxy would be dropped
+		if(params != null || ah != null || cookies != null || proxy != null || needInputStream() || this instanceof BitmapAjaxCallback) return null;
+		
+		return transports.get(Uri.parse(url).getHost());
+	}
+	
+	/**
+	 * Runs the network request in the current thread, for the batch transport.
+	 */
+	AjaxStatus fetchNow(){
+		
+		status = new AjaxStatus();
+		status.redirect(url);
+		
+		networkWork(false);
+		
+		return status;
+	}
+	
+	/**
+	 * Completes the network stage with the response split from a batch.
+	 */
+	void batched(int code, String message, byte[] data){
+		
+		status.code(code).redirect(url).time(new Date());
+		
+		if(message != null){
+			status.message(message);
+		}
+		
+		if(code >= 200 && code < 300){
+			status.data(data);
+		}else{
+			status.message(message == null ? "batch error" : message);
+			if(data != null){
+				try{
+					String error = new String(data, "UTF-8");
+					AQUtility.debug("error", error);
+					status.error(error);
+				}catch(UnsupportedEncodingException e){
+					//utf-8 is always supported, report it like any other unexpected failure
+					AQUtility.report(e);
+				}
+			}
+		}
+		
+		status.lap(AjaxStatus.TIME_DOWNLOAD);
+		
+		recordNetwork();
+		
+		status.mark();
+		decodeStage();
+	}
+	
+	Map<String, String> getHeaders(){
+		return headers;
+	}
+	
+	Map<String, Object> getParams(){
+		return params;
+	}
+	
+	Map<String, String> getCookies(){
+		return cookies;
+	}
+	
+	AccountHandle getAuth(){
+		return ah;
+	}
+	
+	HttpHost getProxy(){
+		return proxy;
+	}
+	
+	/**
+	 * Completes the request with the result of another request that was sent on its behalf, such as by the offline queue.
+	 */
+	@SuppressWarnings("unchecked")
+	void complete(Object result, AjaxStatus status){
+		
+		this.result = (T) result;
+		this.status = status;
+		
+		callback();
+	}
+	
+	private void recordNetwork(){
+		
+		CacheStats stats = CacheStats.get(CacheStats.NETWORK);
+		
+		int code = status.getCode();
+		
+		if(code >= 200 && code < 300){
+			
+			byte[] data = status.getData();
+			File file = status.getFile();
+			
+			if(data != null){
+				stats.hit(data.length);
+			}else if(file != null){
+				stats.hit(file.length());
+			}else{
+				stats.hit(0);
+			}
+		}else{
+			stats.miss();
+		}
 	}
 	
 	protected File getCacheFile(){
@@ -1068,14 +1935,29 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 				
 					File file = getCacheFile();
 					if(!status.getInvalid()){	
+						
+						//written before the entry so a hit never finds the entry without it
+						File charsetFile = getCharsetFile();
+						if(charsetFile != null){
+							if(String.class.equals(type)){
+								AQUtility.write(charsetFile, headerCharset == null ? new byte[0] : headerCharset.getBytes("utf-8"));
+							}else if(charsetFile.exists()){
+								charsetFile.delete();
+							}
+						}
+						
 						//AQUtility.debug("write", url);
 						filePut(url, result, file, data);
+						CacheStats.get(CacheStats.FILE).put(data.length);
 					}else{
 						if(file.exists()){
 							file.delete();
 						}
 					}
 					
+				}else if(data == null && status.getSource() == AjaxStatus.NETWORK && status.getFile() != null && targetFile == null){
+					//streamed to the cache file by network
+					CacheStats.get(CacheStats.FILE).put(status.getFile().length());
 				}
 			}catch(Exception e){
 				AQUtility.debug(e);
@@ -1155,7 +2037,9 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 	
 	private static ExecutorService fetchExe;
-	public static void execute(Runnable job){
+	
+	//executors are created lazily from the ui thread and from worker threads resuming requests
+	public static synchronized void execute(Runnable job){
 		
 		if(fetchExe == null){
 			fetchExe = Executors.newFixedThreadPool(NETWORK_POOL);			
@@ -1164,12 +2048,133 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		fetchExe.execute(job);
 	}
 	
+	private static ExecutorService decodeExe;
+	private static synchronized void decode(Runnable job){
+		
+		if(decodeExe == null){
+			decodeExe = Executors.newFixedThreadPool(DECODE_POOL);
+		}
+		
+		decodeExe.execute(job);
+	}
+	
+	private static ExecutorService backgroundExe;
+	private static synchronized void background(Runnable job){
+		
+		if(backgroundExe == null){
+			backgroundExe = Executors.newFixedThreadPool(BACKGROUND_POOL, new ThreadFactory(){
+				
+				@Override
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "aquery-background");
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		
+		backgroundExe.execute(job);
+	}
+	
+	//a foreground request joined this background request, move it to the network and decode threads
+	void promote(){
+		
+		if(!background) return;
+		
+		background = false;
+		
+		Thread t = worker;
+		if(t != null){
+			t.setPriority(Thread.NORM_PRIORITY);
+		}
+		
+		//the background submission finds the stage taken and returns
+		if(queued.get()){
+			if(decoding){
+				decode(this);
+			}else{
+				execute(this);
+			}
+		}
+	}
+	
+	private void fetchStage(){
+		decoding = false;
+		queued.set(true);
+		if(background){
+			background(this);
+		}else{
+			execute(this);
+		}
+	}
+	
+	private void decodeStage(){
+		decoding = true;
+		queued.set(true);
+		if(background){
+			background(this);
+		}else{
+			decode(this);
+		}
+	}
+	
+	private static final Object decodeLock = new Object();
+	private static long decodeUsed;
+	
+	private static void acquire(long cost){
+		
+		synchronized(decodeLock){
+			
+			//always admit when nothing is decoding, so a single oversized transform can still proceed
+			while(decodeUsed > 0 && decodeUsed + cost > DECODE_BUDGET){
+				try{
+					decodeLock.wait();
+				}catch(InterruptedException e){
+					break;
+				}
+			}
+			
+			decodeUsed += cost;
+		}
+	}
+	
+	private static void release(long cost){
+		
+		synchronized(decodeLock){
+			decodeUsed -= cost;
+			decodeLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Sets the simultaneous decode threads limit. Decode threads transform (decode bitmaps, parse json, etc) the fetched data. 
+	 * Default is the number of cpu cores, at most 4.
+	 *
+	 * @param limit the new decode threads limit
+	 */
+	public static synchronized void setDecodeLimit(int limit){
+		
+		DECODE_POOL = Math.max(1, limit);
+		decodeExe = null;
+		
+		AQUtility.debug("setting decode limit", DECODE_POOL);
+	}
+	
+	/**
+	 * Sets the estimated memory in bytes that concurrent transforms can use. Default is 1/4 of the max heap. 
+	 *
+	 * @param bytes the decode memory budget
+	 */
+	public static void setDecodeBudget(long bytes){
+		DECODE_BUDGET = bytes;
+	}
+	
 	/**
 	 * Sets the simultaneous network threads limit. Highest limit is 25.
 	 *
 	 * @param limit the new network threads limit
 	 */
-	public static void setNetworkLimit(int limit){
+	public static synchronized void setNetworkLimit(int limit){
 		
 		NETWORK_POOL = Math.max(1, Math.min(25, limit));
 		fetchExe = null;
@@ -1177,17 +2182,49 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		AQUtility.debug("setting network limit", NETWORK_POOL);
 	}
 	
+	/**
+	 * Adjust the simultaneous network requests to each host from the observed latency and throughput, between min and max.
+	 * 
+	 * The limit of a host grows by one for every round of requests that complete without slowing down, and is cut
+	 * when responses take much longer than the best seen so far, or fail with network errors, 429 or 503.
+	 * Requests over the limit wait in a queue without holding network threads. The network limit is raised to max if lower.
+	 *
+	 * @param min the min limit per host, 0 to disable
+	 * @param max the max limit per host, highest is 25
+	 */
+	public static void setAdaptiveNetworkLimit(int min, int max){
+		
+		max = Math.max(1, Math.min(25, max));
+		min = Math.min(min, max);
+		
+		if(min > 0 && NETWORK_POOL < max){
+			setNetworkLimit(max);
+		}
+		
+		AdaptiveLimit.setup(min, max);
+	}
+	
 	/**
 	 * Cancel ALL ajax tasks.
 	 */
 	
-	public static void cancel(){
+	public static synchronized void cancel(){
 		
 		if(fetchExe != null){
 			fetchExe.shutdownNow();
 			fetchExe = null;
 		}
 		
+		if(decodeExe != null){
+			decodeExe.shutdownNow();
+			decodeExe = null;
+		}
+		
+		if(backgroundExe != null){
+			backgroundExe.shutdownNow();
+			backgroundExe = null;
+		}
+		
 		BitmapAjaxCallback.clearTasks();
 	}
 	
@@ -1204,48 +2241,220 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		
 		HttpGet get = new HttpGet(url);
 		
-		httpDo(get, url, headers, status);
+		httpDo(get, url, headers, status);
+		
+	}
+	
+	
+	private void httpPost(String url, Map<String, String> headers, Map<String, Object> params, AjaxStatus status) throws ClientProtocolException, IOException{
+		
+		AQUtility.debug("post", url);
+		
+		
+		HttpPost post = new HttpPost(url);
+		
+		HttpEntity entity = null;
+		
+		Object value = params.get(AQuery.POST_ENTITY);
+		
+		if(value instanceof HttpEntity){			
+			entity = (HttpEntity) value;			
+		}else if(value instanceof JSONObject || value instanceof JSONArray || value instanceof ContentWriter){
+			entity = new JsonEntity(value);
+		}else{
+			
+			List<NameValuePair> pairs = new ArrayList<NameValuePair>();
+			
+			for(Map.Entry<String, Object> e: params.entrySet()){
+				value = e.getValue();
+				if(value != null){
+					pairs.add(new BasicNameValuePair(e.getKey(), value.toString()));				
+				}
+			}
+			
+			entity = new UrlEncodedFormEntity(pairs, "UTF-8");
+			
+		}
+		
+		
+		if(headers != null  && !headers.containsKey("Content-Type")){
+			if(entity instanceof JsonEntity){
+				headers.put("Content-Type", JsonEntity.TYPE);
+			}else{
+				headers.put("Content-Type", "application/x-www-form-urlencoded;charset=UTF-8");
+			}
+		}
+		
+		if(requestEncoding != null){
+			entity = compress(entity, requestEncoding);
+		}
+		
+		post.setEntity(entity);
+		httpDo(post, url, headers, status);
+		
 		
 	}
 	
-	
-	private void httpPost(String url, Map<String, String> headers, Map<String, Object> params, AjaxStatus status) throws ClientProtocolException, IOException{
+	//streams a json object, array or writer as the request body, sent chunked as the length is not known up front
+	private static class JsonEntity extends AbstractHttpEntity{
 		
-		AQUtility.debug("post", url);
+		private static final String TYPE = "application/json;charset=UTF-8";
 		
+		private final Object value;
 		
-		HttpPost post = new HttpPost(url);
+		private JsonEntity(Object value){
+			this.value = value;
+			setContentType(TYPE);
+			setChunked(true);
+		}
 		
-		HttpEntity entity = null;
+		@Override
+		public boolean isRepeatable() {
+			return !(value instanceof ContentWriter);
+		}
 		
-		Object value = params.get(AQuery.POST_ENTITY);
+		@Override
+		public long getContentLength() {
+			return -1;
+		}
 		
-		if(value instanceof HttpEntity){			
-			entity = (HttpEntity) value;			
-		}else{
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+		
+		@Override
+		public InputStream getContent() throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			writeTo(baos);
+			return new ByteArrayInputStream(baos.toByteArray());
+		}
+		
+		@Override
+		public void writeTo(OutputStream os) throws IOException {
 			
-			List<NameValuePair> pairs = new ArrayList<NameValuePair>();
+			Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 8192);
 			
-			for(Map.Entry<String, Object> e: params.entrySet()){
-				value = e.getValue();
-				if(value != null){
-					pairs.add(new BasicNameValuePair(e.getKey(), value.toString()));				
-				}
+			if(value instanceof ContentWriter){
+				((ContentWriter) value).write(writer);
+			}else{
+				writeJson(writer, value);
 			}
 			
-			entity = new UrlEncodedFormEntity(pairs, "UTF-8");
+			writer.flush();
+		}
+		
+		private static void writeJson(Writer writer, Object value) throws IOException{
 			
+			if(value == null || value == JSONObject.NULL){
+				writer.write("null");
+			}else if(value instanceof JSONObject){
+				
+				JSONObject jo = (JSONObject) value;
+				
+				writer.write('{');
+				
+				Iterator<?> keys = jo.keys();
+				while(keys.hasNext()){
+					String key = keys.next().toString();
+					writer.write(JSONObject.quote(key));
+					writer.write(':');
+					writeJson(writer, jo.opt(key));
+					if(keys.hasNext()) writer.write(',');
+				}
+				
+				writer.write('}');
+				
+			}else if(value instanceof JSONArray){
+				
+				JSONArray ja = (JSONArray) value;
+				
+				writer.write('[');
+				
+				for(int i = 0; i < ja.length(); i++){
+					if(i > 0) writer.write(',');
+					writeJson(writer, ja.opt(i));
+				}
+				
+				writer.write(']');
+				
+			}else if(value instanceof Number){
+				
+				try{
+					writer.write(JSONObject.numberToString((Number) value));
+				}catch(JSONException e){
+					throw new IOException(e.getMessage());
+				}
+				
+			}else if(value instanceof Boolean){
+				writer.write(value.toString());
+			}else{
+				writer.write(JSONObject.quote(value.toString()));
+			}
 		}
 		
+	}
+	
+	private static final int COMPRESS_MIN = 512;
+	
+	private static HttpEntity compress(final HttpEntity entity, final String encoding) throws IOException{
+		
+		long length = entity.getContentLength();
 		
-		if(headers != null  && !headers.containsKey("Content-Type")){
-			headers.put("Content-Type", "application/x-www-form-urlencoded;charset=UTF-8");
+		if(entity.getContentEncoding() != null || (length >= 0 && length < COMPRESS_MIN)){
+			return entity;
 		}
 		
-		post.setEntity(entity);
-		httpDo(post, url, headers, status);
+		//bodies in memory are compressed up front so the request keeps its Content-Length
+		if(entity.isRepeatable() && length >= 0){
+			
+			ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.max(32, length / 4));
+			OutputStream os = compressStream(baos, encoding);
+			entity.writeTo(os);
+			os.close();
+			
+			ByteArrayEntity result = new ByteArrayEntity(baos.toByteArray());
+			result.setContentType(entity.getContentType());
+			result.setContentEncoding(encoding);
+			
+			AQUtility.debug("compressed", length + "->" + result.getContentLength());
+			
+			return result;
+		}
+		
+		return new HttpEntityWrapper(entity){
+			
+			@Override
+			public long getContentLength() {
+				return -1;
+			}
+			
+			@Override
+			public boolean isChunked() {
+				return true;
+			}
+			
+			@Override
+			public Header getContentEncoding() {
+				return new BasicHeader("Content-Encoding", encoding);
+			}
+			
+			@Override
+			public void writeTo(OutputStream os) throws IOException {
+				OutputStream cos = compressStream(os, encoding);
+				entity.writeTo(cos);
+				((DeflaterOutputStream) cos).finish();
+			}
+		};
+	}
+	
+	private static OutputStream compressStream(OutputStream os, String encoding) throws IOException{
 		
+		if("gzip".equalsIgnoreCase(encoding)){
+			return new GZIPOutputStream(os);
+		}
 		
+		return new DeflaterOutputStream(os);
 	}
 	
 	private static SocketFactory ssf;
@@ -1263,7 +2472,80 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 	
 	private static DefaultHttpClient client;
-	private static DefaultHttpClient getClient(){
+	private static final String CONNECTED = "aq.connected";
+	
+	/**
+	 * Create the shared http client, resolve hosts and open connections to them in the background, so the first requests 
+	 * do not wait for dns, tcp and tls setup. Should be called early, such as in Application.onCreate().
+	 * 
+	 * Connections are only kept if the http client is reused, see setReuseHttpClient().
+	 *
+	 * @param urls urls of the hosts, such as https://api.example.com, only the scheme, host and port are used
+	 */
+	public static void prewarm(String... urls){
+		
+		for(final String url: urls){
+			
+			String host = getHost(url);
+			if(host == null) continue;
+			
+			DnsCache.prefetch(host);
+			
+			if(!REUSE_CLIENT) continue;
+			
+			background(new Runnable() {
+				
+				@Override
+				public void run() {
+					prewarmConnection(url);
+				}
+			});
+		}
+	}
+	
+	private static void prewarmConnection(String url){
+		
+		ManagedClientConnection conn = null;
+		ClientConnectionManager cm = null;
+		
+		try{
+			
+			DefaultHttpClient client = getClient();
+			cm = client.getConnectionManager();
+			
+			Uri uri = Uri.parse(url);
+			HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+			
+			//the same route as requests to the host, so they reuse the connection
+			HttpContext context = new BasicHttpContext();
+			HttpRoute route = client.getRoutePlanner().determineRoute(target, new HttpGet(url), context);
+			
+			conn = cm.requestConnection(route, null).getConnection(NET_TIMEOUT, TimeUnit.MILLISECONDS);
+			
+			if(!conn.isOpen()){
+				conn.open(route, context, client.getParams());
+				AQUtility.debug("prewarmed", route);
+			}
+			
+			conn.markReusable();
+			
+		}catch(Exception e){
+			AQUtility.debug(e);
+			if(conn != null){
+				try{
+					conn.abortConnection();
+				}catch(IOException ex){
+				}
+			}
+			conn = null;
+		}finally{
+			if(conn != null){
+				cm.releaseConnection(conn, -1, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	private static synchronized DefaultHttpClient getClient(){
 		
 		if(client == null || !REUSE_CLIENT){
 		
@@ -1283,9 +2565,28 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
 			registry.register(new Scheme("https", ssf == null ? SSLSocketFactory.getSocketFactory() : ssf, 443));
 			
-			ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(httpParams, registry);			
+			ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(httpParams, registry){
+				
+				//host names are resolved with DnsCache
+				@Override
+				protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemes){
+					return new DnsConnectionOperator(schemes);
+				}
+			};
+			
 			client = new DefaultHttpClient(cm, httpParams);
 			
+			//request interceptors run after the connection is opened, mark the time for AjaxStatus.TIME_CONNECT
+			client.addRequestInterceptor(new HttpRequestInterceptor(){
+				
+				@Override
+				public void process(HttpRequest request, HttpContext context){
+					if(context.getAttribute(CONNECTED) == null){
+						context.setAttribute(CONNECTED, System.nanoTime());
+					}
+				}
+			});
+			
 		}
 		return client;
 	}
@@ -1304,8 +2605,8 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
                
 		}
 		
-		if(GZIP && (headers == null || !headers.containsKey("Accept-Encoding"))){
-			hr.addHeader("Accept-Encoding", "gzip");
+		if(GZIP && acceptEncoding.length() > 0 && (headers == null || !headers.containsKey("Accept-Encoding"))){
+			hr.addHeader("Accept-Encoding", acceptEncoding);
 		}
 			
 		String cookie = makeCookie();
@@ -1325,12 +2626,21 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		CookieStore cookieStore = new BasicCookieStore();
 		context.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
 		
+		status.mark();
+		
 		HttpResponse response = client.execute(hr, context);
 		
+		Long connected = (Long) context.getAttribute(CONNECTED);
+		if(connected != null){
+			status.lap(AjaxStatus.TIME_CONNECT, connected);
+		}
+		status.lap(AjaxStatus.TIME_FIRST_BYTE);
+		
         byte[] data = null;
         File file = getPreFile();
         
         String redirect = url;
+        String contentEncoding = null;
         
         int code = response.getStatusLine().getStatusCode();
         String message = response.getStatusLine().getReasonPhrase();
@@ -1372,9 +2682,14 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		        }
 		        
 		        Header encoding = entity.getContentEncoding();
-		        if(encoding != null && encoding.getValue().equalsIgnoreCase("gzip")) {
-		        	is = new GZIPInputStream(entity.getContent());
+		        if(encoding != null) {
+		        	is = decode(encoding.getValue(), entity.getContent());
+		        }
+		        
+		        //unknown encodings are passed through as is
+		        if(is != null){
 		        	AQUtility.copy(is, os);
+		        	contentEncoding = encoding.getValue();
 		        }else{
 		        	entity.writeTo(os);
 		        }
@@ -1410,12 +2725,14 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	        */
         }
         
+        status.lap(AjaxStatus.TIME_DOWNLOAD);
+        
         AQUtility.debug("response", code);
         if(data != null){
         	AQUtility.debug(data.length, url);
         }
         
-        status.code(code).message(message).error(error).redirect(redirect).time(new Date()).data(data).file(file).client(client).context(context).headers(response.getAllHeaders());
+        status.code(code).message(message).error(error).redirect(redirect).time(new Date()).data(data).file(file).client(client).context(context).headers(response.getAllHeaders()).encoding(contentEncoding);
 		
         
 	}
@@ -1519,13 +2836,22 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	private static final String twoHyphens = "--";
 	private static final String boundary = "*****";
 	
+	private static final int UPLOAD_BUFFER = 32 * 1024;
+	
+	private String requestEncoding;
+	private int uploadDimension;
+	private int uploadQuality;
+	
+	private long uploaded;
+	private long uploadTotal;
+	private long uploadReported;
 	
 	private static boolean isMultiPart(Map<String, Object> params){
 		
 		for(Map.Entry<String, Object> entry: params.entrySet()){
 			Object value = entry.getValue();
 			AQUtility.debug(entry.getKey(), value);
-			if(value instanceof File || value instanceof byte[]) return true;
+			if(value instanceof File || value instanceof byte[] || value instanceof InputStream) return true;
 		}
 		
 		return false;
@@ -1536,8 +2862,10 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 		AQUtility.debug("multipart", url);
 		
 		HttpURLConnection conn = null;
-		DataOutputStream dos = null;
+		OutputStream os = null;
+		
 		
+		status.mark();
 		
 		URL u = new URL(url);
 		conn = (HttpURLConnection) u.openConnection();
@@ -1565,23 +2893,40 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 			conn.setRequestProperty("Cookie", cookie);
 		}
 		
-		dos = new DataOutputStream(conn.getOutputStream());
-
-		for(Map.Entry<String, Object> entry: params.entrySet()){
-			
-			writeObject(dos, entry.getKey(), entry.getValue());
-			
+		if(uploadDimension > 0){
+			params = resizeImages(params);
+		}
+		
+		//stream the body instead of letting the connection buffer all of it to count the length
+		long length = multiLength(params);
+		if(length >= 0 && length <= Integer.MAX_VALUE){
+			conn.setFixedLengthStreamingMode((int) length);
+		}else{
+			conn.setChunkedStreamingMode(UPLOAD_BUFFER);
 		}
 		
-		dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
-		dos.flush();
-		dos.close();
+		uploaded = 0;
+		uploadReported = 0;
+		uploadTotal = length;
+		
+		os = new BufferedOutputStream(new UploadStream(conn.getOutputStream()), UPLOAD_BUFFER);
+		
+		status.lap(AjaxStatus.TIME_CONNECT);
+
+		try{
+			writeMulti(os, params);
+			os.flush();
+		}finally{
+			os.close();
+		}
 		
 		conn.connect();
 		
         int code = conn.getResponseCode();
         String message = conn.getResponseMessage();
         
+        status.lap(AjaxStatus.TIME_FIRST_BYTE);
+        
         byte[] data = null;
         
         if(code < 200 || code >= 300){        	
@@ -1593,6 +2938,8 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
     		
         }
         
+        status.lap(AjaxStatus.TIME_DOWNLOAD);
+        
         AQUtility.debug("response", code);
         
         if(data != null){
@@ -1605,48 +2952,294 @@ public abstract class AbstractAjaxCallback<T, K> implements Runnable{
 	
 	}
 	
-	private static void writeObject(DataOutputStream dos, String name, Object obj) throws IOException{
+	private static void writeMulti(OutputStream os, Map<String, Object> params) throws IOException{
+		
+		for(Map.Entry<String, Object> entry: params.entrySet()){
+			
+			writeObject(os, entry.getKey(), entry.getValue());
+			
+		}
+		
+		writeBytes(os, (twoHyphens + boundary + twoHyphens + lineEnd).getBytes("UTF-8"));
+		
+	}
+	
+	//the multipart body length, -1 if an input stream of unknown length is included
+	private static long multiLength(Map<String, Object> params) throws IOException{
+		
+		long length = 0;
+		
+		for(Map.Entry<String, Object> entry: params.entrySet()){
+			
+			String name = entry.getKey();
+			Object obj = entry.getValue();
+			
+			if(obj == null) continue;
+			
+			if(obj instanceof File){
+				File file = (File) obj;
+				length += dataHeader(name, file.getName()).length + file.length() + lineEnd.length();
+			}else if(obj instanceof ImagePart){
+				ImagePart part = (ImagePart) obj;
+				length += dataHeader(name, part.filename).length + part.data.length + lineEnd.length();
+			}else if(obj instanceof byte[]){
+				length += dataHeader(name, name).length + ((byte[]) obj).length + lineEnd.length();
+			}else if(obj instanceof InputStream){
+				return -1;
+			}else{
+				length += fieldBytes(name, obj.toString()).length;
+			}
+		}
+		
+		length += (twoHyphens + boundary + twoHyphens + lineEnd).length();
+		
+		return length;
+	}
+	
+	private static void writeObject(OutputStream os, String name, Object obj) throws IOException{
 		
 		if(obj == null) return;
 		
 		if(obj instanceof File){
-
+
 			File file = (File) obj;
-			writeData(dos, name, file.getName(), new FileInputStream(file));
-
+			writeData(os, name, file.getName(), new FileInputStream(file));
+
 		}else if(obj instanceof byte[]){
-			writeData(dos, name, name, new ByteArrayInputStream((byte[]) obj));
+			
+			writeBytes(os, dataHeader(name, name));
+			writeBytes(os, (byte[]) obj);
+			writeBytes(os, lineEnd.getBytes("UTF-8"));
+			
+		}else if(obj instanceof ImagePart){
+			
+			ImagePart part = (ImagePart) obj;
+			writeBytes(os, dataHeader(name, part.filename));
+			writeBytes(os, part.data);
+			writeBytes(os, lineEnd.getBytes("UTF-8"));
+			
+		}else if(obj instanceof InputStream){
+			writeData(os, name, name, (InputStream) obj);
 		}else{
-			writeField(dos, name, obj.toString());
+			writeBytes(os, fieldBytes(name, obj.toString()));
 		}
 		
 	}
 	
-	
-	private static void writeData(DataOutputStream dos, String name, String filename, InputStream is) throws IOException {
+	//counts the body bytes handed to the connection for the upload progress
+	private class UploadStream extends FilterOutputStream{
 		
-		dos.writeBytes(twoHyphens + boundary + lineEnd);
-		dos.writeBytes("Content-Disposition: form-data; name=\""+name+"\";"
-				+ " filename=\"" + filename + "\"" + lineEnd);
-		dos.writeBytes(lineEnd);
-
-		AQUtility.copy(is, dos);
+		private UploadStream(OutputStream os){
+			super(os);
+		}
+		
+		@Override
+		public void write(int b) throws IOException{
+			out.write(b);
+			uploaded(1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException{
+			out.write(b, off, len);
+			uploaded(len);
+		}
+	}
+	
+	private static class ImagePart{
+		
+		private final String filename;
+		private final byte[] data;
+		
+		private ImagePart(String filename, byte[] data){
+			this.filename = filename;
+			this.data = data;
+		}
+	}
+	
+	private Map<String, Object> resizeImages(Map<String, Object> params){
+		
+		Map<String, Object> result = new LinkedHashMap<String, Object>(params);
+		
+		for(Map.Entry<String, Object> entry: result.entrySet()){
+			
+			Object value = entry.getValue();
+			
+			if(value instanceof File){
+				try{
+					byte[] data = resizeImage((File) value, uploadDimension, uploadQuality);
+					if(data != null){
+						entry.setValue(new ImagePart(((File) value).getName(), data));
+					}
+				}catch(OutOfMemoryError e){
+					//send the original file
+					AQUtility.report(e);
+				}
+			}
+		}
+		
+		return result;
+	}
+	
+	//returns null if the file is not a jpeg or png image or is already small enough
+	private static byte[] resizeImage(File file, int dimension, int quality){
 		
-		dos.writeBytes(lineEnd);
+		String path = file.getAbsolutePath();
 		
+		BitmapFactory.Options info = new BitmapFactory.Options();
+		info.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, info);
+		
+		//only these formats can be written back as they came, others would change format under the same file name
+		boolean png = "image/png".equals(info.outMimeType);
+		if(!png && !"image/jpeg".equals(info.outMimeType)) return null;
+		
+		int dim = Math.max(info.outWidth, info.outHeight);
+		if(dim <= dimension) return null;
+		
+		Bitmap bm = BitmapAjaxCallback.getResizedImage(path, null, dimension, false, 0);
+		if(bm == null) return null;
+		
+		//sampling only halves the size, scale the rest and apply the camera orientation
+		Matrix matrix = new Matrix();
+		
+		float scale = (float) dimension / Math.max(bm.getWidth(), bm.getHeight());
+		if(scale < 1){
+			matrix.postScale(scale, scale);
+		}
+		
+		int degrees = getOrientation(path);
+		if(degrees != 0){
+			matrix.postRotate(degrees);
+		}
+		
+		if(!matrix.isIdentity()){
+			Bitmap scaled = Bitmap.createBitmap(bm, 0, 0, bm.getWidth(), bm.getHeight(), matrix, true);
+			if(scaled != bm){
+				bm.recycle();
+				bm = scaled;
+			}
+		}
+		
+		Bitmap.CompressFormat format = png ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(1024, bm.getWidth() * bm.getHeight() / 4));
+		bm.compress(format, quality, baos);
+		bm.recycle();
+		
+		AQUtility.debug("upload resized", file.length() + "->" + baos.size());
+		
+		return baos.toByteArray();
+	}
+	
+	private static int getOrientation(String path){
+		
+		try{
+			
+			ExifInterface exif = new ExifInterface(path);
+			
+			switch(exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)){
+				case ExifInterface.ORIENTATION_ROTATE_90:
+					return 90;
+				case ExifInterface.ORIENTATION_ROTATE_180:
+					return 180;
+				case ExifInterface.ORIENTATION_ROTATE_270:
+					return 270;
+			}
+			
+		}catch(IOException e){
+			AQUtility.debug(e);
+		}
+		
+		return 0;
+	}
+	
+	private static byte[] dataHeader(String name, String filename) throws IOException{
+		
+		String header = twoHyphens + boundary + lineEnd
+			+ "Content-Disposition: form-data; name=\""+name+"\";"
+			+ " filename=\"" + filename + "\"" + lineEnd
+			+ lineEnd;
+		
+		return header.getBytes("UTF-8");
+	}
+	
+	private static void writeData(OutputStream os, String name, String filename, InputStream is) throws IOException {
+		
+		writeBytes(os, dataHeader(name, filename));
+		
+		try{
+			byte[] b = new byte[UPLOAD_BUFFER];
+			int read;
+			while((read = is.read(b)) != -1){
+				os.write(b, 0, read);
+			}
+		}finally{
+			AQUtility.close(is);
+		}
+		
+		writeBytes(os, lineEnd.getBytes("UTF-8"));
+		
+	}
+	
+	private static byte[] fieldBytes(String name, String value) throws IOException {
+		
+		String field = twoHyphens + boundary + lineEnd
+			+ "Content-Disposition: form-data; name=\"" + name + "\"" + lineEnd
+			+ lineEnd
+			+ value + lineEnd;
+		
+		return field.getBytes("UTF-8");
+	}
+	
+	private static void writeBytes(OutputStream os, byte[] data) throws IOException{
+		
+		//large arrays are written in slices so progress moves while they are sent
+		for(int offset = 0; offset < data.length; offset += UPLOAD_BUFFER){
+			int len = Math.min(UPLOAD_BUFFER, data.length - offset);
+			os.write(data, offset, len);
+		}
+	}
+	
+	private void uploaded(int count){
+		
+		uploaded += count;
+		
+		//report about every percent, or every buffer when the total is unknown
+		long step = Math.max(UPLOAD_BUFFER, uploadTotal / 100);
+		
+		if(uploaded - uploadReported >= step || uploaded == uploadTotal){
+			
+			uploadReported = uploaded;
+			
+			final long current = uploaded;
+			final long total = uploadTotal;
+			
+			AQUtility.post(new Runnable() {
+				
+				@Override
+				public void run() {
+					uploadProgress(url, current, total);
+				}
+			});
+		}
 	}
 	
-    
-	private static void writeField(DataOutputStream dos, String name, String value) throws IOException {
-		dos.writeBytes(twoHyphens + boundary + lineEnd);
-		dos.writeBytes("Content-Disposition: form-data; name=\"" + name + "\"");
-		dos.writeBytes(lineEnd);
-		dos.writeBytes(lineEnd);
+	/**
+	 * Called in the main thread as a multipart request body is sent. 
+	 * 
+	 * The default implementation updates the progress bar or progress dialog set with progress().
+	 *
+	 * @param url the url
+	 * @param current bytes sent
+	 * @param total total bytes of the body, -1 if unknown because an InputStream param is included
+	 */
+	public void uploadProgress(String url, long current, long total){
 		
-		byte[] data = value.getBytes("UTF-8");
-		dos.write(data);
+		if(progress != null && total > 0){
+			Common.setProgress(progress.get(), url, (int) (current * 100 / total));
+		}
 		
-		dos.writeBytes(lineEnd);
 	}
 	
 	
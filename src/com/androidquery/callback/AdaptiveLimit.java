@@ -0,0 +1,286 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.androidquery.util.AQUtility;
+import com.androidquery.util.Metrics;
+
+/**
+ * Per host limit of simultaneous network requests, adjusted with additive increase and multiplicative decrease (AIMD).
+ * 
+ * Each response is compared with the best time to first byte and the best throughput seen from the host. The limit grows by 
+ * about one per round of requests while responses are not slower than expected, and is cut when they are, or when they fail 
+ * with network errors, 429 or 503. The best times slowly decay towards recent ones, so a change of network is picked up.
+ * 
+ * Requests over the limit are queued and resumed in order without holding a network thread. The limit of each host is 
+ * published as the Metrics gauge limit.{host}. Disabled by default, enable with AjaxCallback.setAdaptiveNetworkLimit().
+ *
+ */
+public class AdaptiveLimit{
+	
+	//responses slower than expected by this ratio are congested
+	private static final double TOLERANCE = 1.5;
+	//slack in milliseconds, so timer noise on fast links is not taken as congestion
+	private static final long SLACK = 20;
+	private static final double BACKOFF = 0.75;
+	private static final double DECAY = 0.01;
+	//smaller bodies say little about throughput
+	private static final long MIN_SAMPLE = 8 * 1024;
+	
+	private static int MIN = 0;
+	private static int MAX = 25;
+	
+	private static final Map<String, AdaptiveLimit> limits = new HashMap<String, AdaptiveLimit>();
+	
+	private final String host;
+	private final LinkedList<AbstractAjaxCallback<?, ?>> pending = new LinkedList<AbstractAjaxCallback<?, ?>>();
+	
+	private double limit;
+	private int inflight;
+	private double rtt = -1;
+	private double throughput = -1;
+	private long decreased;
+	private int published = -1;
+	
+	private AdaptiveLimit(String host){
+		this.host = host;
+		this.limit = MIN;
+		publish();
+	}
+	
+	static void setup(int min, int max){
+		
+		List<AbstractAjaxCallback<?, ?>> waiting = new ArrayList<AbstractAjaxCallback<?, ?>>();
+		
+		synchronized(limits){
+			
+			MIN = min;
+			MAX = max;
+			
+			for(AdaptiveLimit limit: limits.values()){
+				synchronized(limit){
+					waiting.addAll(limit.pending);
+					limit.pending.clear();
+				}
+			}
+			
+			limits.clear();
+		}
+		
+		//queued requests start over with the new limits
+		for(AbstractAjaxCallback<?, ?> cb: waiting){
+			cb.refetch();
+		}
+	}
+	
+	private static AdaptiveLimit get(String host){
+		
+		synchronized(limits){
+			
+			if(MIN <= 0) return null;
+			
+			AdaptiveLimit result = limits.get(host);
+			
+			if(result == null){
+				result = new AdaptiveLimit(host);
+				limits.put(host, result);
+			}
+			
+			return result;
+		}
+	}
+	
+	/**
+	 * Gets the current limit of a host.
+	 *
+	 * @param host the host
+	 * @return the limit, 0 if not adaptive or no request is made to the host
+	 */
+	public static int getLimit(String host){
+		
+		synchronized(limits){
+			AdaptiveLimit limit = limits.get(host);
+			if(limit == null) return 0;
+			synchronized(limit){
+				return (int) limit.limit;
+			}
+		}
+	}
+	
+	//returns false if the request is queued, and resumed with refetch() later
+	static boolean acquire(String host, AbstractAjaxCallback<?, ?> cb, boolean resumed){
+		
+		if(host == null) return true;
+		
+		AdaptiveLimit limit = get(host);
+		if(limit == null) return true;
+		
+		return limit.acquire(cb, resumed);
+	}
+	
+	//status is null if the request was not sent, then the limit is not adjusted
+	static void release(String host, AjaxStatus status){
+		
+		AdaptiveLimit limit = find(host);
+		if(limit == null) return;
+		
+		limit.release(status);
+		resume(limit.next());
+	}
+	
+	//a request handed a free slot was aborted before it acquired it, the slot goes to the next pending request
+	static void skip(String host){
+		
+		AdaptiveLimit limit = find(host);
+		if(limit == null) return;
+		
+		resume(limit.next());
+	}
+	
+	private static AdaptiveLimit find(String host){
+		
+		if(host == null) return null;
+		
+		synchronized(limits){
+			return limits.get(host);
+		}
+	}
+	
+	private static void resume(List<AbstractAjaxCallback<?, ?>> next){
+		
+		for(AbstractAjaxCallback<?, ?> cb: next){
+			cb.refetch();
+		}
+	}
+	
+	private synchronized boolean acquire(AbstractAjaxCallback<?, ?> cb, boolean resumed){
+		
+		if(inflight < (int) limit){
+			inflight++;
+			return true;
+		}
+		
+		if(resumed){
+			pending.addFirst(cb);
+		}else{
+			pending.add(cb);
+		}
+		
+		return false;
+	}
+	
+	private synchronized void release(AjaxStatus status){
+		
+		boolean full = inflight >= (int) limit;
+		
+		inflight = Math.max(0, inflight - 1);
+		
+		if(status != null){
+			update(status, full);
+			publish();
+		}
+	}
+	
+	private synchronized List<AbstractAjaxCallback<?, ?>> next(){
+		
+		List<AbstractAjaxCallback<?, ?>> result = new ArrayList<AbstractAjaxCallback<?, ?>>();
+		
+		//resumed requests acquire again, they may lose the slot to a new request and go back to the head of the queue
+		int free = (int) limit - inflight;
+		while(free > 0 && !pending.isEmpty()){
+			result.add(pending.removeFirst());
+			free--;
+		}
+		
+		return result;
+	}
+	
+	private void update(AjaxStatus status, boolean full){
+		
+		int code = status.getCode();
+		
+		if(code == AjaxStatus.NETWORK_ERROR || code == 429 || code == 503){
+			decrease(status.getDuration());
+			return;
+		}
+		
+		long firstByte = status.getTiming(AjaxStatus.TIME_FIRST_BYTE);
+		long download = status.getTiming(AjaxStatus.TIME_DOWNLOAD);
+		long bytes = getBytes(status);
+		
+		double expected = rtt < 0 ? firstByte : rtt;
+		if(bytes > 0 && throughput > 0){
+			expected += bytes / throughput;
+		}
+		
+		double actual = firstByte + download;
+		
+		//the baselines follow the best samples at once, and worse samples slowly
+		rtt = rtt < 0 ? firstByte : Math.min(firstByte, rtt + (firstByte - rtt) * DECAY);
+		
+		if(bytes >= MIN_SAMPLE){
+			double sample = (double) bytes / Math.max(1, download);
+			throughput = throughput < 0 ? sample : Math.max(sample, throughput - (throughput - sample) * DECAY);
+		}
+		
+		if(actual > expected * TOLERANCE + SLACK){
+			decrease((long) actual);
+		}else if(full){
+			//only grow when the limit is in use, about one per round of requests
+			limit = Math.min(MAX, limit + 1 / limit);
+		}
+	}
+	
+	private void decrease(long duration){
+		
+		//requests in flight were sent with the old limit, cut once per round
+		long now = System.currentTimeMillis();
+		if(now - decreased < duration) return;
+		
+		decreased = now;
+		limit = Math.max(MIN, limit * BACKOFF);
+	}
+	
+	private static long getBytes(AjaxStatus status){
+		
+		byte[] data = status.getData();
+		if(data != null) return data.length;
+		
+		File file = status.getFile();
+		if(file != null) return file.length();
+		
+		return 0;
+	}
+	
+	private void publish(){
+		
+		int current = (int) limit;
+		
+		if(current != published){
+			published = current;
+			AQUtility.debug("limit " + host, current);
+			Metrics.setGauge("limit." + host, current);
+		}
+	}
+	
+}
@@ -56,6 +56,27 @@ public class AjaxStatus {
 	public static final int AUTH_ERROR = -102;
 	public static final int TRANSFORM_ERROR = -103;
 	
+	/** Timing of waiting for network and decode threads. */
+	public static final int TIME_QUEUE = 0;
+	
+	/** Timing of opening the connection. */
+	public static final int TIME_CONNECT = 1;
+	
+	/** Timing from sending the request to receiving the response headers. */
+	public static final int TIME_FIRST_BYTE = 2;
+	
+	/** Timing of reading the response body. */
+	public static final int TIME_DOWNLOAD = 3;
+	
+	/** Timing of transforming the data or cached file, such as decoding bitmaps. */
+	public static final int TIME_TRANSFORM = 4;
+	
+	/** Timing of writing to the file cache. */
+	public static final int TIME_CACHE_WRITE = 5;
+	
+	/** Timing from the end of background work to the callback returned, including waiting for the ui thread. */
+	public static final int TIME_CALLBACK = 6;
+	
 	
 	private int code = 200;
 	private String message = "OK";
@@ -74,7 +95,10 @@ public class AjaxStatus {
 	private String error;
 	private HttpContext context;
 	private Header[] headers;
+	private String encoding;
 	private Closeable close;
+	private long[] timings = new long[7];
+	private long mark = System.nanoTime();
 	
 	public AjaxStatus(){		
 	}
@@ -139,6 +163,11 @@ public class AjaxStatus {
 		return this;
 	}
 	
+	protected AjaxStatus encoding(String encoding){
+		this.encoding = encoding;
+		return this;
+	}
+	
 	protected AjaxStatus done(){
 		this.duration = System.currentTimeMillis() - start;
 		this.done = true;
@@ -149,10 +178,26 @@ public class AjaxStatus {
 	protected AjaxStatus reset(){
 		this.duration = System.currentTimeMillis() - start;
 		this.done = false;
+		Arrays.fill(timings, 0);
 		close();
 		return this;
 	}
 	
+	protected AjaxStatus mark(){
+		this.mark = System.nanoTime();
+		return this;
+	}
+	
+	protected AjaxStatus lap(int stage){
+		return lap(stage, System.nanoTime());
+	}
+	
+	protected AjaxStatus lap(int stage, long time){
+		timings[stage] += time - mark;
+		mark = time;
+		return this;
+	}
+	
 	protected void closeLater(Closeable c){
 		this.close = c;
 	}
@@ -261,6 +306,17 @@ public class AjaxStatus {
 		return duration;
 	}
 
+	/**
+	 * Gets the time spent in a stage of the ajax request in millseconds, such as AjaxStatus.TIME_QUEUE or AjaxStatus.TIME_TRANSFORM.
+	 * Stages not involved in the request, such as network stages for cached results, are 0.
+	 *
+	 * @param stage the stage
+	 * @return timing
+	 */
+	public long getTiming(int stage) {
+		return timings[stage] / 1000000;
+	}
+	
 	/**
 	 * Gets the source type. Can be AjaxStatus.NETWORK, AjaxStatus.DATASTORE, AjaxStatus.FILE, or AjaxStatus.MEMORY.
 	 *
@@ -318,6 +374,17 @@ public class AjaxStatus {
 	}
 	
 	
+	/**
+	 * Gets the content encoding the response was decoded from, such as gzip.
+	 * 
+	 * Returns null if the response was not encoded or is not from network.
+	 *
+	 * @return encoding
+	 */
+	public String getEncoding(){
+		return encoding;
+	}
+	
 	/**
 	 * Return the http response headers.
 	 * 
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.callback;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.androidquery.util.AQUtility;
+
+/**
+ * Run a group of ajax requests concurrently and receive one callback when all of them are completed, or when the timeout is reached.
+ *
+ * Results and statuses of each request are available from the batch in the callback. 
+ * Image requests with an image view are not supported, as they complete with the view instead of a callback.
+ * Should be used in the main ui thread.
+ *
+ */
+public class Batch implements Runnable{
+	
+	private static final Class<?>[] BATCH_SIG = {Batch.class};
+	
+	private List<AbstractAjaxCallback<?, ?>> callbacks = new ArrayList<AbstractAjaxCallback<?, ?>>();
+	private boolean[] completed;
+	
+	private long timeout;
+	private Object handler;
+	private String callback;
+	private WeakReference<Activity> act;
+	
+	private int pending;
+	private boolean started;
+	private boolean delivered;
+	private boolean timedOut;
+	
+	/**
+	 * Add a request to the batch. The request should not be started.
+	 *
+	 * @param cb the request
+	 * @return self
+	 */
+	public Batch add(AbstractAjaxCallback<?, ?> cb){
+		callbacks.add(cb);
+		return this;
+	}
+	
+	/**
+	 * Deliver the callback with partial results if the batch is not completed within the timeout. 
+	 * Requests still running at the timeout are not aborted, but their results are no longer reported.
+	 *
+	 * @param timeout the timeout in milliseconds, 0 = no timeout
+	 * @return self
+	 */
+	public Batch timeout(long timeout){
+		this.timeout = timeout;
+		return this;
+	}
+	
+	/**
+	 * Set a callback handler. Method must have signature of method(Batch batch).
+	 *
+	 * @param handler the handler
+	 * @param callback the callback method name
+	 * @return self
+	 */
+	public Batch handler(Object handler, String callback){
+		this.handler = handler;
+		this.callback = callback;
+		return this;
+	}
+	
+	/**
+	 * The callback method to be overwritten for subclasses, if no handler is set.
+	 *
+	 * @param batch the batch
+	 */
+	public void callback(Batch batch){
+		
+	}
+	
+	/**
+	 * Start all requests of the batch. 
+	 * 
+	 * The requests and the batch callback are skipped if the activity is no longer in use, as with AbstractAjaxCallback.async(Activity).
+	 *
+	 * @param act the activity
+	 */
+	public void async(Activity act){
+		
+		this.act = new WeakReference<Activity>(act);
+		async((Context) act);
+	}
+	
+	/**
+	 * Start all requests of the batch. 
+	 * 
+	 * Each request is notified of its completion by the batch, in addition to any group it already belongs to.
+	 *
+	 * @param context the context
+	 */
+	public void async(Context context){
+		
+		if(started){
+			throw new IllegalStateException("Batch already started.");
+		}
+		
+		started = true;
+		
+		int size = callbacks.size();
+		
+		completed = new boolean[size];
+		
+		//requests served from memory complete within async(), count all of them first
+		pending = size;
+		
+		if(timeout > 0){
+			AQUtility.postDelayed(this, timeout);
+		}
+		
+		for(int i = 0; i < size; i++){
+			
+			final int index = i;
+			
+			AbstractAjaxCallback<?, ?> cb = callbacks.get(i);
+			
+			cb.listener(new Runnable() {
+				
+				@Override
+				public void run() {
+					done(index);
+				}
+			});
+			
+			if(act != null){
+				cb.async(act.get());
+			}else{
+				cb.async(context);
+			}
+		}
+		
+		if(size == 0){
+			deliver();
+		}
+	}
+	
+	/**
+	 * Abort all requests that are not completed. The callback will not be invoked.
+	 */
+	public void cancel(){
+		
+		delivered = true;
+		AQUtility.removePost(this);
+		
+		for(int i = 0; i < callbacks.size(); i++){
+			if(!isCompleted(i)){
+				callbacks.get(i).abort();
+			}
+		}
+	}
+	
+	private void done(int index){
+		
+		if(completed[index]) return;
+		
+		completed[index] = true;
+		pending--;
+		
+		if(pending == 0){
+			deliver();
+		}
+	}
+	
+	//timeout
+	@Override
+	public void run(){
+		
+		if(delivered) return;
+		
+		timedOut = true;
+		deliver();
+	}
+	
+	private void deliver(){
+		
+		if(delivered) return;
+		
+		delivered = true;
+		AQUtility.removePost(this);
+		
+		if(!isActive()) return;
+		
+		if(handler != null){
+			AQUtility.invokeHandler(handler, callback, false, true, BATCH_SIG, this);
+		}else{
+			try{
+				callback(this);
+			}catch(Exception e){
+				AQUtility.report(e);
+			}
+		}
+	}
+	
+	private boolean isActive(){
+		
+		if(act == null) return true;
+		
+		Activity a = act.get();
+		
+		return a != null && !a.isFinishing();
+	}
+	
+	/**
+	 * Number of requests in the batch.
+	 *
+	 * @return size
+	 */
+	public int size(){
+		return callbacks.size();
+	}
+	
+	/**
+	 * Get a request of the batch, in the order they are added.
+	 *
+	 * @param index the index
+	 * @return the request
+	 */
+	public AbstractAjaxCallback<?, ?> get(int index){
+		return callbacks.get(index);
+	}
+	
+	/**
+	 * Get the result of a request, null if it's failed or not completed.
+	 *
+	 * @param index the index
+	 * @return the result
+	 */
+	public Object getResult(int index){
+		if(!isCompleted(index)) return null;
+		return callbacks.get(index).getResult();
+	}
+	
+	/**
+	 * Get the status of a request, null if it's not completed.
+	 *
+	 * @param index the index
+	 * @return the status
+	 */
+	public AjaxStatus getStatus(int index){
+		if(!isCompleted(index)) return null;
+		return callbacks.get(index).getStatus();
+	}
+	
+	/**
+	 * Test if a request is completed.
+	 *
+	 * @param index the index
+	 * @return completed
+	 */
+	public boolean isCompleted(int index){
+		return completed != null && completed[index];
+	}
+	
+	/**
+	 * Test if the callback is delivered by timeout, with some requests not completed.
+	 *
+	 * @return timed out
+	 */
+	public boolean isTimedOut(){
+		return timedOut;
+	}
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * The wire format of a batch endpoint, which combines several requests into one http request.
+ *
+ * @see BatchTransport
+ */
+public interface BatchFormat{
+
+	/**
+	 * Build the body of the batch request.
+	 *
+	 * @param parts the combined requests, in order
+	 * @return the request entity
+	 */
+	public HttpEntity encode(List<BatchTransport.Part> parts) throws IOException;
+	
+	/**
+	 * Split the batch response, and set the code and data of each part.
+	 *
+	 * @param data the response body of the batch request
+	 * @param parts the combined requests, in the same order as encode
+	 */
+	public void decode(byte[] data, List<BatchTransport.Part> parts) throws IOException;
+	
+}
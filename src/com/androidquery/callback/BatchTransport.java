@@ -0,0 +1,227 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.net.Uri;
+
+import com.androidquery.AQuery;
+import com.androidquery.util.AQUtility;
+
+/**
+ * Combines GET requests to a host that are started within a short window into one request to a batch endpoint.
+ * 
+ * Register with AjaxCallback.setBatchTransport(). Each combined request gets its own result, status and callback as usual.
+ * Requests with params, auth, cookies, a proxy, or result types that need a file (File, InputStream, XmlPullParser) and image requests are not combined.
+ *
+ */
+public class BatchTransport{
+	
+	private static final long WINDOW = 30;
+	private static final int MAX_SIZE = 20;
+	
+	private final String endpoint;
+	private final BatchFormat format;
+	private long window = WINDOW;
+	private int maxSize = MAX_SIZE;
+	
+	private List<AbstractAjaxCallback<?, ?>> pending = new ArrayList<AbstractAjaxCallback<?, ?>>();
+	
+	/**
+	 * A request combined into a batch.
+	 */
+	public static class Part{
+		
+		private final String url;
+		private final Map<String, String> headers;
+		private int code = AjaxStatus.NETWORK_ERROR;
+		private byte[] data;
+		
+		private Part(String url, Map<String, String> headers){
+			this.url = url;
+			this.headers = headers;
+		}
+		
+		public String getUrl(){
+			return url;
+		}
+		
+		/**
+		 * The path and query of the url.
+		 * 
+		 * @return relative url
+		 */
+		public String getRelativeUrl(){
+			Uri uri = Uri.parse(url);
+			String query = uri.getEncodedQuery();
+			return uri.getEncodedPath() + (query == null ? "" : "?" + query);
+		}
+		
+		public Map<String, String> getHeaders(){
+			return headers;
+		}
+		
+		public void setCode(int code){
+			this.code = code;
+		}
+		
+		public void setData(byte[] data){
+			this.data = data;
+		}
+		
+		int getCode(){
+			return code;
+		}
+		
+		byte[] getData(){
+			return data;
+		}
+	}
+	
+	/**
+	 * Create a transport.
+	 *
+	 * @param endpoint the url of the batch endpoint
+	 * @param format the wire format of the endpoint
+	 */
+	public BatchTransport(String endpoint, BatchFormat format){
+		this.endpoint = endpoint;
+		this.format = format;
+	}
+	
+	/**
+	 * Set how long to wait for more requests after the first one, default is 30 milliseconds.
+	 *
+	 * @param window the window in milliseconds
+	 * @return self
+	 */
+	public BatchTransport window(long window){
+		this.window = window;
+		return this;
+	}
+	
+	/**
+	 * Set the max number of requests in one batch, default is 20. A full batch is sent without waiting for the window.
+	 *
+	 * @param maxSize the max size
+	 * @return self
+	 */
+	public BatchTransport maxSize(int maxSize){
+		this.maxSize = Math.max(1, maxSize);
+		return this;
+	}
+	
+	void enqueue(AbstractAjaxCallback<?, ?> cb){
+		
+		List<AbstractAjaxCallback<?, ?>> full = null;
+		boolean first;
+		
+		synchronized(this){
+			
+			pending.add(cb);
+			first = pending.size() == 1;
+			
+			if(pending.size() >= maxSize){
+				full = take();
+			}
+		}
+		
+		if(full != null){
+			send(full);
+		}else if(first){
+			
+			AQUtility.postDelayed(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					List<AbstractAjaxCallback<?, ?>> cbs = take();
+					if(!cbs.isEmpty()){
+						send(cbs);
+					}
+				}
+			}, window);
+		}
+	}
+	
+	private synchronized List<AbstractAjaxCallback<?, ?>> take(){
+		List<AbstractAjaxCallback<?, ?>> result = pending;
+		pending = new ArrayList<AbstractAjaxCallback<?, ?>>();
+		return result;
+	}
+	
+	private void send(final List<AbstractAjaxCallback<?, ?>> cbs){
+		
+		AbstractAjaxCallback.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				fetch(cbs);
+			}
+		});
+	}
+	
+	private void fetch(List<AbstractAjaxCallback<?, ?>> cbs){
+		
+		List<Part> parts = new ArrayList<Part>();
+		for(AbstractAjaxCallback<?, ?> cb: cbs){
+			parts.add(new Part(cb.getUrl(), cb.getHeaders()));
+		}
+		
+		AQUtility.debug("batch", endpoint + ":" + parts.size());
+		
+		AjaxStatus status = null;
+		
+		try{
+			
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put(AQuery.POST_ENTITY, format.encode(parts));
+			
+			AjaxCallback<byte[]> carrier = new AjaxCallback<byte[]>();
+			carrier.url(endpoint).type(byte[].class).params(params);
+			
+			status = carrier.fetchNow();
+			
+			if(status.getCode() == 200 && status.getData() != null){
+				format.decode(status.getData(), parts);
+			}
+			
+		}catch(Exception e){
+			AQUtility.debug(e);
+		}
+		
+		for(int i = 0; i < cbs.size(); i++){
+			
+			Part part = parts.get(i);
+			
+			int code = part.getCode();
+			String message = null;
+			
+			//the batch request itself failed
+			if(code == AjaxStatus.NETWORK_ERROR && status != null && status.getCode() != 200){
+				code = status.getCode();
+				message = status.getMessage();
+			}
+			
+			cbs.get(i).batched(code, message, part.getData());
+		}
+	}
+	
+}
@@ -42,7 +42,9 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.WeakHashMap;
 
@@ -50,6 +52,7 @@ import com.androidquery.AQuery;
 import com.androidquery.auth.AccountHandle;
 import com.androidquery.util.AQUtility;
 import com.androidquery.util.BitmapCache;
+import com.androidquery.util.CacheStats;
 import com.androidquery.util.Common;
 import com.androidquery.util.RatioDrawable;
 
@@ -70,6 +73,12 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	private static Map<String, Bitmap> invalidCache;
 	
 	private static HashMap<String, WeakHashMap<ImageView, BitmapAjaxCallback>> queueMap = new HashMap<String, WeakHashMap<ImageView, BitmapAjaxCallback>>();	
+	private static HashMap<String, BitmapAjaxCallback> fetchMap = new HashMap<String, BitmapAjaxCallback>();
+	
+	private static int VARIANT_MAX = 100;
+	private static Map<String, int[]> variants;
+	private static int KEY_MAX = 200;
+	private static Map<String, Key> keys;
 	
 	private WeakReference<ImageView> v;
 	private int targetWidth;
@@ -83,6 +92,10 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	private boolean targetDim = true;
 	private float anchor = AQuery.ANCHOR_DYNAMIC;
 	private boolean invalid;
+	private volatile int decodeWidth;
+	private int sourceWidth = -1;
+	private Bitmap source;
+	private Map<BitmapAjaxCallback, Context> joiners;
 	
 	
 	/**
@@ -113,6 +126,7 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	 */
 	public BitmapAjaxCallback targetWidth(int targetWidth){
 		this.targetWidth = targetWidth;
+		this.decodeWidth = targetWidth;
 		return this;
 	}
 	
@@ -324,9 +338,56 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
     }
 	
     private Bitmap bmGet(String path, byte[] data){    	
-    	return getResizedImage(path, data, targetWidth, targetDim, round);
+    	
+    	//decode once at the largest size requested by the queued views, then derive our own variant
+    	int width = decodeWidth;
+    	
+    	source = getResizedImage(path, data, width, targetDim, 0);
+    	sourceWidth = width;
+    	
+    	if(width == targetWidth){
+    		return round(source, round);
+    	}
+    	
+    	return scaleDown(source, targetWidth, round);
     	
     }
+    
+    private static Bitmap round(Bitmap bm, int round){
+    	if(bm == null || round <= 0) return bm;
+    	return getRoundedCornerBitmap(bm, round);
+    }
+    
+    /**
+     * Derive a smaller variant from an already decoded bitmap, using the same power of 2 steps as downsampling.
+     * The bitmap is returned as is if no scaling or rounding is required.
+     */
+    private static Bitmap scaleDown(Bitmap bm, int targetWidth, int round){
+    	
+    	if(bm == null) return null;
+    	
+    	Bitmap result = bm;
+    	
+    	try{
+	    	if(targetWidth > 0){
+	    		int ssize = sampleSize(bm.getWidth(), targetWidth);
+	    		if(ssize > 1){
+	    			result = Bitmap.createScaledBitmap(bm, Math.max(1, bm.getWidth() / ssize), Math.max(1, bm.getHeight() / ssize), true);
+	    		}
+	    	}
+    	}catch(OutOfMemoryError e){
+    		clearCache();
+			AQUtility.report(e);
+			return null;
+    	}
+    	
+    	return round(result, round);
+    }
+    
+    //a decoded width covers a target if it's the original size or not smaller than the target
+    private static boolean covers(int width, int target){
+    	return width == 0 || (target > 0 && target <= width);
+    }
    
     @Override
     protected File accessFile(File cacheDir, String url){		
@@ -339,6 +400,30 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	}
     
     
+	@Override
+	protected long decodeCost(byte[] data, File file){
+		
+		String path = null;
+		if(file != null) path = file.getAbsolutePath();
+		
+		Options info = new Options();
+		info.inJustDecodeBounds = true;
+		
+		decode(path, data, info);
+		
+		int width = info.outWidth;
+		int height = info.outHeight;
+		if(width <= 0 || height <= 0) return 0;
+		
+		int ssize = 1;
+		if(decodeWidth > 0){
+			ssize = sampleSize(width, decodeWidth);
+		}
+		
+		//argb 8888
+		return (long) (width / ssize) * (height / ssize) * 4;
+	}
+	
 	@Override
 	protected Bitmap fileGet(String url, File file, AjaxStatus status) {		
 		return bmGet(file.getAbsolutePath(), null);
@@ -377,7 +462,9 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		
 		Bitmap bm = null;
 		
-		View view = v.get();
+		View view = null;
+		if(v != null) view = v.get();
+		
 		if(view != null){
 		
 			String key = Integer.toString(fallback);			
@@ -423,8 +510,13 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	@Override
 	public final void callback(String url, Bitmap bm, AjaxStatus status) {
 		
-		ImageView firstView = v.get();
+		ImageView firstView = null;
+		if(v != null) firstView = v.get();
+		
 		WeakHashMap<ImageView, BitmapAjaxCallback> ivs = queueMap.remove(url);
+		if(fetchMap.get(url) == this){
+			fetchMap.remove(url);
+		}
 		
 		//check if view queue already contains first view 
 		if(ivs == null || !ivs.containsKey(firstView)){
@@ -437,12 +529,58 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 			
 			for(ImageView view: set){
 				BitmapAjaxCallback cb = ivs.get(view);
+				
+				Bitmap vbm = bm;
+				
+				if(source != null && (cb.targetWidth != targetWidth || cb.round != round)){
+					
+					if(!covers(sourceWidth, cb.targetWidth)){
+						//joined after the source is decoded with a smaller size, fetch again (most likely from file cache)
+						cb.async(view.getContext());
+						continue;
+					}
+					
+					vbm = scaleDown(source, cb.targetWidth, cb.round);
+					if(cb.memCache){
+						memPut(url, cb.targetWidth, cb.round, vbm, invalid);
+					}
+				}
+				
 				cb.status = status;				
-				checkCb(cb, url, view, bm, status);
+				checkCb(cb, url, view, vbm, status);
 			}
 		
 		}
 		
+		if(joiners != null){
+			
+			Map<BitmapAjaxCallback, Context> joined = joiners;
+			joiners = null;
+			
+			for(Entry<BitmapAjaxCallback, Context> entry: joined.entrySet()){
+				BitmapAjaxCallback cb = entry.getKey();
+				
+				Bitmap jbm = bm;
+				
+				if(source != null && (cb.targetWidth != targetWidth || cb.round != round)){
+					
+					if(!covers(sourceWidth, cb.targetWidth)){
+						cb.async(entry.getValue());
+						continue;
+					}
+					
+					jbm = scaleDown(source, cb.targetWidth, cb.round);
+					if(cb.memCache){
+						memPut(url, cb.targetWidth, cb.round, jbm, invalid);
+					}
+				}
+				
+				cb.deliver(jbm, status);
+			}
+		}
+		
+		source = null;
+		
 	}
 	
 	private void checkCb(BitmapAjaxCallback cb, String url, ImageView v, Bitmap bm, AjaxStatus status){
@@ -526,15 +664,18 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		bigCache = null;
 		smallCache = null;
 		invalidCache = null;
+		variants = null;
+		keys = null;
 	}
 	
 	protected static void clearTasks(){
 		queueMap.clear();
+		fetchMap.clear();
 	}
 	
 	private static Map<String, Bitmap> getBCache(){
 		if(bigCache == null){
-			bigCache = Collections.synchronizedMap(new BitmapCache(BIG_MAX, BIG_PIXELS, BIG_TPIXELS));
+			bigCache = Collections.synchronizedMap(tier(new BitmapCache(BIG_MAX, BIG_PIXELS, BIG_TPIXELS, CacheStats.get(CacheStats.BITMAP_BIG))));
 		}
 		return bigCache;
 	}
@@ -542,18 +683,147 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 	private static Map<String, Bitmap> getSCache(){
 		if(smallCache == null){
-			smallCache = Collections.synchronizedMap(new BitmapCache(SMALL_MAX, SMALL_PIXELS, 250000));
+			smallCache = Collections.synchronizedMap(tier(new BitmapCache(SMALL_MAX, SMALL_PIXELS, 250000, CacheStats.get(CacheStats.BITMAP_SMALL))));
 		}
 		return smallCache;
 	}
 	
 	private static Map<String, Bitmap> getICache(){
 		if(invalidCache == null){
-			invalidCache = Collections.synchronizedMap(new BitmapCache(100, BIG_PIXELS, 250000));
+			invalidCache = Collections.synchronizedMap(tier(new BitmapCache(100, BIG_PIXELS, 250000, CacheStats.get(CacheStats.BITMAP_INVALID))));
 		}
 		return invalidCache;
 	}
 	
+	//lookups are counted by memGet(), once for all tiers
+	private static BitmapCache tier(BitmapCache cache){
+		cache.setCountLookups(false);
+		return cache;
+	}
+	
+	@SuppressWarnings("serial")
+	private static Map<String, int[]> getVariants(){
+		if(variants == null){
+			variants = Collections.synchronizedMap(new LinkedHashMap<String, int[]>(8, 0.75F, true){
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest){
+					return size() > VARIANT_MAX;
+				}
+			});
+		}
+		return variants;
+	}
+	
+	@SuppressWarnings("serial")
+	private static Map<String, Key> getKeys(){
+		if(keys == null){
+			keys = Collections.synchronizedMap(new LinkedHashMap<String, Key>(8, 0.75F, true){
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Key> eldest){
+					return size() > Math.max(KEY_MAX, BIG_MAX + SMALL_MAX);
+				}
+			});
+		}
+		return keys;
+	}
+	
+	//memcache key of a size variant, reused so memcache hits do not build a new string
+	private static class Key{
+		
+		private final int width;
+		private final int round;
+		private final String key;
+		private final Key next;
+		
+		private Key(int width, int round, String key, Key next){
+			this.width = width;
+			this.round = round;
+			this.key = key;
+			this.next = next;
+		}
+	}
+	
+	//remember which widths of an url are memcached so other sizes can be derived without decoding
+	private static void addVariant(String url, int targetWidth){
+		
+		Map<String, int[]> map = getVariants();
+		
+		synchronized(map){
+		
+			int[] widths = map.get(url);
+			
+			if(widths == null){
+				map.put(url, new int[]{targetWidth});
+				return;
+			}
+			
+			for(int w: widths){
+				if(w == targetWidth) return;
+			}
+			
+			int[] result = new int[widths.length + 1];
+			System.arraycopy(widths, 0, result, 0, widths.length);
+			result[widths.length] = targetWidth;
+			map.put(url, result);
+		}
+	}
+	
+	//the smallest memcached variant of the url that covers the width, its width is returned in sourceWidth
+	private Bitmap deriveSource(String url, int width, int[] sourceWidth){
+		
+		int[] widths = getVariants().get(url);
+		if(widths == null) return null;
+		
+		Bitmap best = null;
+		
+		for(int w: widths){
+			
+			if(!covers(w, width)) continue;
+			//the same variant is a plain memcache hit
+			if(w == targetWidth && round == 0) continue;
+			
+			Bitmap bm = cacheGet(getKey(url, w, 0));
+			if(bm != null && (best == null || bm.getWidth() < best.getWidth())){
+				best = bm;
+				sourceWidth[0] = w;
+			}
+		}
+		
+		return best;
+	}
+	
+	@Override
+	protected boolean memDerivable(String url){
+		return bm == null && deriveSource(url, decodeWidth, new int[1]) != null;
+	}
+	
+	//scaling is done in the decode threads, memcache lookups in the ui thread never derive
+	@Override
+	protected Bitmap memDerive(String url){
+		
+		int[] width = new int[1];
+		
+		Bitmap best = deriveSource(url, decodeWidth, width);
+		if(best == null) return null;
+		
+		//queued views of other sizes are derived from the same source in callback()
+		source = best;
+		sourceWidth = width[0];
+		
+		return scaleDown(best, targetWidth, round);
+	}
+	
+	private static Bitmap cacheGet(String key){
+		
+		Bitmap result = getBCache().get(key);
+		
+		if(result == null){
+			result = getSCache().get(key);
+		}
+		
+		return result;
+	}
+	
 	@Override
 	protected Bitmap memGet(String url){		
 		if(bm != null) return bm;
@@ -575,19 +845,21 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 	private static Bitmap memGet(String url, int targetWidth, int round){
 		
-		url = getKey(url, targetWidth, round);
+		String key = getKey(url, targetWidth, round);
 		
-		Map<String, Bitmap> cache = getBCache();
-		Bitmap result = cache.get(url);
+		String tier = CacheStats.BITMAP_BIG;
+		Bitmap result = getBCache().get(key);
 		
 		if(result == null){
-			cache = getSCache();
-			result = cache.get(url);
+			tier = CacheStats.BITMAP_SMALL;
+			result = getSCache().get(key);
 		}
 		
 		if(result == null){
-			cache = getICache();
-			result = cache.get(url);
+			
+			tier = CacheStats.BITMAP_INVALID;
+			Map<String, Bitmap> cache = getICache();
+			result = cache.get(key);
 			
 			if(result != null){
 				
@@ -598,6 +870,15 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 				
 			}
 		}
+		
+		//one hit or miss per lookup, the hit is also counted on the tier that served it
+		if(result != null){
+			long bytes = BitmapCache.bytes(result);
+			CacheStats.get(tier).hit(bytes);
+			CacheStats.get(CacheStats.BITMAP).hit(bytes);
+		}else{
+			CacheStats.get(CacheStats.BITMAP).miss();
+		}
 //		Log.d(TAG, "key url: "+url+" : "+result);
 
 		return result;
@@ -605,6 +886,27 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 	private static String getKey(String url, int targetWidth, int round){
 		
+		if(targetWidth <= 0 && round <= 0) return url;
+		
+		Map<String, Key> map = getKeys();
+		
+		synchronized(map){
+			
+			Key first = map.get(url);
+			
+			for(Key k = first; k != null; k = k.next){
+				if(k.width == targetWidth && k.round == round) return k.key;
+			}
+			
+			String key = makeKey(url, targetWidth, round);
+			map.put(url, new Key(targetWidth, round, key, first));
+			
+			return key;
+		}
+	}
+	
+	private static String makeKey(String url, int targetWidth, int round){
+		
 		if(targetWidth > 0){
 			url += "#" + targetWidth;
 		}
@@ -634,6 +936,10 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		
 		cache.put(getKey(url, targetWidth, round), bm);
 		
+		if(!invalid && round == 0){
+			addVariant(url, targetWidth);
+		}
+		
 	}
 	
 	
@@ -720,6 +1026,12 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 			return;
 		}
 		
+		//already showing the bitmap, such as a recycled row of a list, keep the current drawable
+		Drawable current = iv.getDrawable();
+		if(ratio <= 0 && current != null && current.getClass() == BitmapDrawable.class && ((BitmapDrawable) current).getBitmap() == bm){
+			return;
+		}
+		
 		Drawable d = makeDrawable(iv, bm, ratio, anchor);
 		Animation anim = null;
 		
@@ -806,19 +1118,32 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		
 		String url = getUrl();		
 		
-		ImageView v = this.v.get();
+		ImageView v = null;
+		if(this.v != null) v = this.v.get();
 		
 		if(url == null){
 			showProgress(false);
-			setBitmap(url, v, null, false);
+			if(v != null) setBitmap(url, v, null, false);
 			return;
 		}
 		
 		Bitmap bm = memGet(url);
+		
+		if(v == null){
+			//no image view, prefetch to memcache only
+			if(bm == null){
+				prefetch(url, context);
+			}else{
+				deliver(bm, new AjaxStatus().source(AjaxStatus.MEMORY).done());
+			}
+			return;
+		}
+		
 		if(bm != null){		
 			v.setTag(AQuery.TAG_URL, url);
 			status = new AjaxStatus().source(AjaxStatus.MEMORY).done();
-			callback(url, bm, status);
+			//only serve this view, views queued for other sizes are served by the fetching callback
+			checkCb(this, url, v, bm, status);
 			return;
 		}
 		
@@ -826,11 +1151,20 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 		presetBitmap(url, v);
 		
 		if(!queueMap.containsKey(url)){
+			decodeWidth = targetWidth;
+			fetchMap.put(url, this);
 			addQueue(url, v);	
 			super.async(v.getContext());
 		}else{	
 			showProgress(true);			
 			addQueue(url, v);
+			
+			//ask the fetching callback to decode large enough for this view, and not to wait behind prefetches
+			BitmapAjaxCallback fetcher = fetchMap.get(url);
+			if(fetcher != null && fetcher != this){
+				fetcher.request(targetWidth);
+				fetcher.promote();
+			}
 		}
 		
 		
@@ -838,6 +1172,82 @@ public class BitmapAjaxCallback extends AbstractAjaxCallback<Bitmap, BitmapAjaxC
 	
 
 	
+	private void prefetch(String url, Context context){
+		
+		if(!queueMap.containsKey(url)){
+			decodeWidth = targetWidth;
+			fetchMap.put(url, this);
+			queueMap.put(url, null);
+			super.async(context);
+		}else{
+			BitmapAjaxCallback fetcher = fetchMap.get(url);
+			if(fetcher != null && fetcher != this){
+				fetcher.request(targetWidth);
+				fetcher.join(this, context);
+			}else{
+				notifyListener();
+			}
+		}
+		
+	}
+	
+	/**
+	 * Abort the image request. Ignored if other image views or prefetches are waiting for the same url.
+	 * 
+	 * Should be called in the main ui thread.
+	 */
+	@Override
+	public void abort(){
+		
+		String url = getUrl();
+		
+		if(fetchMap.get(url) == this){
+			
+			WeakHashMap<ImageView, BitmapAjaxCallback> ivs = queueMap.get(url);
+			if(ivs != null && !ivs.isEmpty()) return;
+			if(joiners != null && !joiners.isEmpty()) return;
+			
+			fetchMap.remove(url);
+			queueMap.remove(url);
+		}
+		
+		super.abort();
+	}
+	
+	/**
+	 * Prefetch an image to the memcache (and file cache) without an image view. 
+	 * The image is decoded with the target width so a later image request with the same width is a memcache hit.
+	 *
+	 * @param context the context
+	 * @param url the image url
+	 * @param targetWidth the target width, 0 for non downsampling
+	 * @return the callback of the request, which can be aborted
+	 */
+	public static BitmapAjaxCallback prefetch(Context context, String url, int targetWidth){
+		
+		BitmapAjaxCallback cb = new BitmapAjaxCallback();
+		cb.url(url).targetWidth(targetWidth).background(true);
+		cb.async(context);
+		
+		return cb;
+	}
+	
+	//called back by this fetching callback once the image is decoded
+	private void join(BitmapAjaxCallback cb, Context context){
+		if(joiners == null){
+			joiners = new LinkedHashMap<BitmapAjaxCallback, Context>();
+		}
+		joiners.put(cb, context);
+	}
+	
+	private void request(int width){
+		if(decodeWidth == 0 || width == 0){
+			decodeWidth = 0;
+		}else{
+			decodeWidth = Math.max(decodeWidth, width);
+		}
+	}
+	
 	private void addQueue(String url, ImageView iv){
 		
 		
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.androidquery.util.AQUtility;
+import com.androidquery.util.Metrics;
+
+/**
+ * Per host circuit breaker. After a number of consecutive failures the host is considered down, and requests to it fail fast
+ * without network for a while. Then a single request is let through, and the host is up again if it succeeds.
+ * 
+ * Network errors and 5xx responses are failures. The state of each host is published as the Metrics gauge circuit.{host}. 
+ * Disabled by default, enable with AjaxCallback.setCircuitBreaker().
+ *
+ */
+public class CircuitBreaker{
+	
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+	
+	private static int THRESHOLD = 0;
+	private static long OPEN_TIME = 30000;
+	
+	private static final Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+	
+	private final String host;
+	private int state = CLOSED;
+	private int failures;
+	private long opened;
+	private boolean probing;
+	
+	private CircuitBreaker(String host){
+		this.host = host;
+	}
+	
+	static void setup(int failures, long openTime){
+		
+		THRESHOLD = failures;
+		OPEN_TIME = openTime;
+		
+		synchronized(breakers){
+			breakers.clear();
+		}
+	}
+	
+	private static CircuitBreaker get(String host){
+		
+		synchronized(breakers){
+			
+			CircuitBreaker result = breakers.get(host);
+			
+			if(result == null){
+				result = new CircuitBreaker(host);
+				breakers.put(host, result);
+			}
+			
+			return result;
+		}
+	}
+	
+	/**
+	 * Gets the state of a host.
+	 *
+	 * @param host the host
+	 * @return CLOSED, OPEN or HALF_OPEN
+	 */
+	public static int getState(String host){
+		
+		synchronized(breakers){
+			CircuitBreaker breaker = breakers.get(host);
+			if(breaker == null) return CLOSED;
+			return breaker.state;
+		}
+	}
+	
+	//returns false if requests to the host should fail fast
+	static boolean allow(String host){
+		
+		if(THRESHOLD <= 0 || host == null) return true;
+		
+		return get(host).allow();
+	}
+	
+	static void result(String host, int code){
+		
+		if(THRESHOLD <= 0 || host == null) return;
+		
+		CircuitBreaker breaker = get(host);
+		
+		if(code == AjaxStatus.NETWORK_ERROR || code >= 500){
+			breaker.failure();
+		}else{
+			breaker.success();
+		}
+	}
+	
+	private synchronized boolean allow(){
+		
+		switch(state){
+			case OPEN:
+				if(System.currentTimeMillis() - opened < OPEN_TIME) return false;
+				setState(HALF_OPEN);
+				probing = true;
+				return true;
+			case HALF_OPEN:
+				//only the probe goes through
+				if(probing) return false;
+				probing = true;
+				return true;
+		}
+		
+		return true;
+	}
+	
+	private synchronized void success(){
+		
+		failures = 0;
+		probing = false;
+		
+		if(state != CLOSED){
+			setState(CLOSED);
+		}
+	}
+	
+	private synchronized void failure(){
+		
+		failures++;
+		probing = false;
+		
+		if(state == HALF_OPEN || (state == CLOSED && failures >= THRESHOLD)){
+			opened = System.currentTimeMillis();
+			setState(OPEN);
+		}
+	}
+	
+	private void setState(int state){
+		
+		this.state = state;
+		
+		AQUtility.debug("circuit " + host, state);
+		Metrics.setGauge("circuit." + host, state);
+	}
+	
+}
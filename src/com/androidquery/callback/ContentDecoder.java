@@ -0,0 +1,30 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.callback;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes response bodies of a content encoding, such as gzip. Register with AjaxCallback.setDecoder().
+ *
+ */
+public interface ContentDecoder{
+
+	public InputStream decode(InputStream is) throws IOException;
+	
+}
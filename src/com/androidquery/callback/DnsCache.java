@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.androidquery.util.AQUtility;
+
+/**
+ * In process cache of host name lookups, used by the shared http client.
+ * 
+ * Addresses are kept for the ttl, and refreshed in the background when a lookup hits the last quarter of the ttl, 
+ * so busy hosts never wait for dns. If a lookup fails, the expired addresses are used instead. 
+ * Addresses that cannot be connected are removed. Thread safe.
+ *
+ */
+public class DnsCache{
+	
+	private static long TTL = 60000;
+	
+	private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private static ExecutorService refreshExe;
+	
+	private static class Entry{
+		
+		private InetAddress[] addresses;
+		private long resolved;
+		private boolean refreshing;
+	}
+	
+	/**
+	 * Sets how long addresses are cached. Default is 60 seconds.
+	 *
+	 * @param ttl the ttl in milliseconds, 0 to disable the cache
+	 */
+	public static void setTtl(long ttl){
+		
+		TTL = ttl;
+		clear();
+	}
+	
+	/**
+	 * Remove all cached addresses.
+	 */
+	public static void clear(){
+		
+		synchronized(entries){
+			entries.clear();
+		}
+	}
+	
+	/**
+	 * Gets the addresses of a host, from the cache if not expired.
+	 *
+	 * @param host the host
+	 * @return the addresses
+	 * @throws UnknownHostException if the host cannot be resolved and nothing is cached
+	 */
+	public static InetAddress[] lookup(String host) throws UnknownHostException{
+		
+		long ttl = TTL;
+		
+		if(ttl <= 0){
+			return InetAddress.getAllByName(host);
+		}
+		
+		Entry entry;
+		boolean refresh = false;
+		
+		synchronized(entries){
+			
+			entry = entries.get(host);
+			
+			if(entry != null){
+				
+				long age = System.currentTimeMillis() - entry.resolved;
+				
+				if(age < ttl){
+					
+					if(age > ttl * 3 / 4 && !entry.refreshing){
+						entry.refreshing = true;
+						refresh = true;
+					}
+				
+				}else{
+					entry = null;
+				}
+			}
+		}
+		
+		if(entry != null){
+			
+			if(refresh){
+				refresh(host);
+			}
+			
+			return entry.addresses;
+		}
+		
+		return resolve(host);
+	}
+	
+	/**
+	 * Resolve a host in the background, so the first request to it does not wait for dns.
+	 *
+	 * @param host the host
+	 */
+	public static void prefetch(String host){
+		
+		if(TTL <= 0) return;
+		
+		synchronized(entries){
+			
+			Entry entry = entries.get(host);
+			if(entry != null && entry.refreshing) return;
+			
+			if(entry == null){
+				entry = new Entry();
+				entries.put(host, entry);
+			}
+			
+			entry.refreshing = true;
+		}
+		
+		refresh(host);
+	}
+	
+	/**
+	 * Remove an address that cannot be connected, the host is resolved again once all its addresses are removed.
+	 *
+	 * @param host the host
+	 * @param address the address
+	 */
+	static void invalidate(String host, InetAddress address){
+		
+		synchronized(entries){
+			
+			Entry entry = entries.get(host);
+			if(entry == null || entry.addresses == null) return;
+			
+			int count = 0;
+			for(InetAddress a: entry.addresses){
+				if(!a.equals(address)) count++;
+			}
+			
+			if(count == 0){
+				entries.remove(host);
+				return;
+			}
+			
+			InetAddress[] result = new InetAddress[count];
+			int i = 0;
+			for(InetAddress a: entry.addresses){
+				if(!a.equals(address)) result[i++] = a;
+			}
+			
+			entry.addresses = result;
+		}
+	}
+	
+	private static InetAddress[] resolve(String host) throws UnknownHostException{
+		
+		InetAddress[] addresses;
+		
+		try{
+			addresses = InetAddress.getAllByName(host);
+		}catch(UnknownHostException e){
+			
+			synchronized(entries){
+				
+				Entry entry = entries.get(host);
+				
+				if(entry != null){
+					entry.refreshing = false;
+					
+					//dns is down, the expired addresses are better than nothing
+					if(entry.addresses != null){
+						AQUtility.debug("dns failed, using expired", host);
+						return entry.addresses;
+					}
+				}
+			}
+			
+			throw e;
+		}
+		
+		synchronized(entries){
+			
+			Entry entry = entries.get(host);
+			if(entry == null){
+				entry = new Entry();
+				entries.put(host, entry);
+			}
+			
+			entry.addresses = addresses;
+			entry.resolved = System.currentTimeMillis();
+			entry.refreshing = false;
+		}
+		
+		return addresses;
+	}
+	
+	private static void refresh(final String host){
+		
+		getExecutor().execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				try{
+					resolve(host);
+				}catch(UnknownHostException e){
+					AQUtility.debug("dns failed", host);
+				}
+			}
+		});
+	}
+	
+	private static synchronized ExecutorService getExecutor(){
+		
+		if(refreshExe == null){
+			refreshExe = Executors.newFixedThreadPool(2, new ThreadFactory(){
+				
+				@Override
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "aquery-dns");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return refreshExe;
+	}
+	
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import com.androidquery.util.AQUtility;
+
+/**
+ * Opens connections of the shared http client to the addresses from DnsCache, trying each address in turn.
+ * 
+ * Secure connections are opened plain and then layered with the scheme's socket factory, which verifies the host name.
+ * Other socket factories, such as a secure one that cannot be layered, connect by host name as usual.
+ *
+ */
+class DnsConnectionOperator extends DefaultClientConnectionOperator{
+	
+	public DnsConnectionOperator(SchemeRegistry schemes){
+		super(schemes);
+	}
+	
+	@Override
+	public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local, HttpContext context, HttpParams params) throws IOException{
+		
+		Scheme scheme = schemeRegistry.getScheme(target.getSchemeName());
+		SocketFactory sf = scheme.getSocketFactory();
+		
+		//connecting a secure factory to an address would verify the address instead of the host name
+		if(!(sf instanceof LayeredSocketFactory) && !(sf instanceof PlainSocketFactory)){
+			super.openConnection(conn, target, local, context, params);
+			return;
+		}
+		
+		SocketFactory plain = sf;
+		LayeredSocketFactory layered = null;
+		
+		if(sf instanceof LayeredSocketFactory){
+			plain = PlainSocketFactory.getSocketFactory();
+			layered = (LayeredSocketFactory) sf;
+		}
+		
+		String host = target.getHostName();
+		int port = scheme.resolvePort(target.getPort());
+		
+		InetAddress[] addresses = DnsCache.lookup(host);
+		
+		for(int i = 0; i < addresses.length; i++){
+			
+			Socket sock = plain.createSocket();
+			conn.opening(sock, target);
+			
+			boolean opened = false;
+			
+			try{
+				
+				Socket connected = plain.connectSocket(sock, addresses[i].getHostAddress(), port, local, 0, params);
+				if(sock != connected){
+					sock = connected;
+					conn.opening(sock, target);
+				}
+				
+				if(layered != null){
+					
+					Socket secure = layered.createSocket(sock, host, port, true);
+					if(sock != secure){
+						sock = secure;
+						conn.opening(sock, target);
+					}
+					
+					prepareSocket(sock, context, params);
+					conn.openCompleted(layered.isSecure(sock), params);
+				}else{
+					prepareSocket(sock, context, params);
+					conn.openCompleted(sf.isSecure(sock), params);
+				}
+				
+				opened = true;
+				return;
+				
+			}catch(ConnectException e){
+				DnsCache.invalidate(host, addresses[i]);
+				if(i == addresses.length - 1) throw e;
+			}catch(ConnectTimeoutException e){
+				DnsCache.invalidate(host, addresses[i]);
+				if(i == addresses.length - 1) throw e;
+			}finally{
+				//the connection only tracks the last socket, a failed one is closed before the next address
+				if(!opened){
+					close(sock);
+				}
+			}
+		}
+	}
+	
+	private static void close(Socket sock){
+		
+		try{
+			sock.close();
+		}catch(IOException e){
+			AQUtility.debug(e);
+		}
+	}
+	
+}
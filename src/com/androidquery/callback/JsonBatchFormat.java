@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A json batch format.
+ * 
+ * The request is an array of {"method": "GET", "relative_url": "/path?query", "headers": {"name": "value"}}.
+ * The response is an array in the same order of {"code": 200, "body": "..."}.
+ *
+ */
+public class JsonBatchFormat implements BatchFormat{
+
+	@Override
+	public HttpEntity encode(List<BatchTransport.Part> parts) throws IOException {
+		
+		JSONArray ja = new JSONArray();
+		
+		try{
+			
+			for(BatchTransport.Part part: parts){
+				
+				JSONObject jo = new JSONObject();
+				jo.put("method", "GET");
+				jo.put("relative_url", part.getRelativeUrl());
+				
+				Map<String, String> headers = part.getHeaders();
+				if(headers != null && !headers.isEmpty()){
+					jo.put("headers", new JSONObject(headers));
+				}
+				
+				ja.put(jo);
+			}
+			
+		}catch(JSONException e){
+			throw new IOException(e.getMessage());
+		}
+		
+		StringEntity entity = new StringEntity(ja.toString(), "UTF-8");
+		entity.setContentType("application/json;charset=UTF-8");
+		
+		return entity;
+	}
+
+	@Override
+	public void decode(byte[] data, List<BatchTransport.Part> parts) throws IOException {
+		
+		try{
+			
+			JSONArray ja = new JSONArray(new String(data, "UTF-8"));
+			
+			for(int i = 0; i < parts.size() && i < ja.length(); i++){
+				
+				JSONObject jo = ja.optJSONObject(i);
+				if(jo == null) continue;
+				
+				BatchTransport.Part part = parts.get(i);
+				part.setCode(jo.optInt("code", AjaxStatus.NETWORK_ERROR));
+				
+				String body = jo.optString("body", null);
+				if(body != null){
+					part.setData(body.getBytes("UTF-8"));
+				}
+			}
+			
+		}catch(JSONException e){
+			throw new IOException(e.getMessage());
+		}
+		
+	}
+	
+}
@@ -0,0 +1,685 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.androidquery.AQuery;
+import com.androidquery.util.AQUtility;
+
+/**
+ * A durable queue for requests that must not be lost, such as posts made while offline.
+ * 
+ * Requests are recorded in a write-ahead log before they are sent, and replayed in order until the server responds, 
+ * including after the process is restarted. Network errors and 5xx responses are retried when connectivity returns or after a backoff.
+ * Delivery is at least once, the server should tolerate a request sent twice if the process dies before its completion is logged.
+ * 
+ * The callback of a request is invoked once it completes. Requests replayed after a restart are reported to the queue handler instead.
+ * The url, type, headers, cookies, encoding and params of a request are kept in the log and survive a replay, other settings do not.
+ * Params must be strings, numbers or booleans, or a JSONObject/JSONArray under AQuery.POST_ENTITY. 
+ * Requests with an auth handler or a proxy cannot be queued, as they cannot be restored after a restart. 
+ * Should be used in the main ui thread.
+ *
+ */
+public class OfflineQueue implements Runnable{
+	
+	private static final long RETRY_MIN = 5000;
+	private static final long RETRY_MAX = 5 * 60 * 1000;
+	private static final int COMPACT_MIN = 1000;
+	private static final Class<?>[] SENT_SIG = {String.class, Object.class, AjaxStatus.class};
+	
+	private static final Map<String, OfflineQueue> queues = new HashMap<String, OfflineQueue>();
+	
+	/**
+	 * Get the queue with the name, pending requests of the log are loaded and replayed when the queue is first used.
+	 *
+	 * @param context the context
+	 * @param name the queue name
+	 * @return the queue
+	 */
+	public static OfflineQueue get(Context context, String name){
+		
+		OfflineQueue queue = queues.get(name);
+		
+		if(queue == null){
+			queue = new OfflineQueue(context.getApplicationContext(), name);
+			queues.put(name, queue);
+		}
+		
+		return queue;
+	}
+	
+	/**
+	 * Close the queue and load its log again in a new queue, as after a process restart. Used by tests.
+	 */
+	static OfflineQueue reload(Context context, String name) throws InterruptedException{
+		
+		OfflineQueue queue = queues.remove(name);
+		
+		if(queue != null){
+			queue.close();
+		}
+		
+		return get(context, name);
+	}
+	
+	static File getFile(Context context, String name){
+		
+		File dir = new File(context.getFilesDir(), "aquery");
+		dir.mkdirs();
+		
+		return new File(dir, "queue-" + name + ".log");
+	}
+	
+	private static class Entry{
+		
+		private long id;
+		private String key;
+		private JSONObject record;
+		private AbstractAjaxCallback<?, ?> cb;
+		
+		//synced to the log, so it can be sent
+		private boolean durable;
+	}
+	
+	private final Context context;
+	private final File file;
+	private final BroadcastReceiver receiver;
+	
+	//the log is only touched by this thread, in order of the calls
+	private final ExecutorService writer;
+	
+	private LinkedHashMap<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+	private boolean loaded;
+	private Entry sending;
+	private AjaxCallback<Object> sendingCarrier;
+	private long lastId;
+	private long retryDelay;
+	private boolean retryScheduled;
+	
+	private Object handler;
+	private String callback;
+	private boolean closed;
+	
+	private OfflineQueue(Context context, String name){
+		
+		this.context = context;
+		this.file = getFile(context, name);
+		
+		this.writer = Executors.newSingleThreadExecutor();
+		
+		writer.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				final List<JSONObject> records = load();
+				
+				AQUtility.post(new Runnable() {
+					
+					@Override
+					public void run() {
+						loaded(records);
+					}
+				});
+			}
+		});
+		
+		IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+		receiver = new BroadcastReceiver() {
+			
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				if(isOnline()){
+					retry();
+				}
+			}
+		};
+		context.registerReceiver(receiver, filter);
+	}
+	
+	//stops the queue, a request being sent stays in the log and is sent again by the next queue
+	private void close() throws InterruptedException{
+		
+		closed = true;
+		
+		context.unregisterReceiver(receiver);
+		AQUtility.removePost(this);
+		
+		writer.shutdown();
+		writer.awaitTermination(10, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Set the handler of requests replayed after a restart, which have no callback. 
+	 * Method must have signature of method(String url, Object result, AjaxStatus status).
+	 *
+	 * @param handler the handler
+	 * @param callback the callback method name
+	 * @return self
+	 */
+	public OfflineQueue handler(Object handler, String callback){
+		this.handler = handler;
+		this.callback = callback;
+		return this;
+	}
+	
+	/**
+	 * Queue a request. The request should not be started.
+	 *
+	 * @param cb the request
+	 */
+	public void add(AbstractAjaxCallback<?, ?> cb){
+		add(cb, null);
+	}
+	
+	/**
+	 * Queue a request, replacing any pending request with the same key that is not being sent. 
+	 * The replaced request is dropped without its callback.
+	 * 
+	 * Throws IllegalArgumentException if the request has params of other types, an auth handler or a proxy.
+	 *
+	 * @param cb the request
+	 * @param key the coalescing key, null to always append
+	 */
+	public void add(AbstractAjaxCallback<?, ?> cb, String key){
+		
+		JSONObject record;
+		
+		try{
+			record = toRecord(cb);
+		}catch(JSONException e){
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		
+		if(key != null){
+			
+			Iterator<Entry> iter = pending.values().iterator();
+			while(iter.hasNext()){
+				Entry old = iter.next();
+				if(key.equals(old.key) && old != sending){
+					iter.remove();
+					log("done", old.id, null, null);
+				}
+			}
+		}
+		
+		final Entry entry = new Entry();
+		entry.id = nextId();
+		entry.key = key;
+		entry.record = record;
+		entry.cb = cb;
+		
+		try{
+			record.put("id", entry.id);
+			if(key != null) record.put("key", key);
+		}catch(JSONException e){
+		}
+		
+		pending.put(entry.id, entry);
+		
+		//sent only after the record is synced, so a request is never on the wire without being in the log
+		log("add", entry.id, record, new Runnable() {
+			
+			@Override
+			public void run() {
+				entry.durable = true;
+				sendNext();
+			}
+		});
+	}
+	
+	/**
+	 * Number of requests waiting to be completed.
+	 *
+	 * @return size
+	 */
+	public int size(){
+		return pending.size();
+	}
+	
+	/**
+	 * Replay pending requests now, instead of waiting for connectivity or the retry backoff.
+	 */
+	public void retry(){
+		
+		retryDelay = 0;
+		
+		if(retryScheduled){
+			retryScheduled = false;
+			AQUtility.removePost(this);
+		}
+		
+		sendNext();
+	}
+	
+	//retry backoff
+	@Override
+	public void run(){
+		retryScheduled = false;
+		sendNext();
+	}
+	
+	private long nextId(){
+		lastId = Math.max(lastId + 1, System.currentTimeMillis());
+		return lastId;
+	}
+	
+	private void loaded(List<JSONObject> records){
+		
+		//requests added before the log is loaded are newer
+		LinkedHashMap<Long, Entry> result = new LinkedHashMap<Long, Entry>();
+		
+		for(JSONObject record: records){
+			
+			Entry entry = new Entry();
+			entry.id = record.optLong("id");
+			entry.key = record.optString("key", null);
+			entry.record = record;
+			entry.durable = true;
+			
+			if(!pending.containsKey(entry.id)){
+				result.put(entry.id, entry);
+			}
+			
+			lastId = Math.max(lastId, entry.id);
+		}
+		
+		result.putAll(pending);
+		pending = result;
+		
+		loaded = true;
+		
+		AQUtility.debug("queue loaded", pending.size());
+		
+		sendNext();
+	}
+	
+	private boolean isOnline(){
+		
+		try{
+			ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo info = cm.getActiveNetworkInfo();
+			return info != null && info.isConnected();
+		}catch(SecurityException e){
+			//no ACCESS_NETWORK_STATE permission
+			return true;
+		}
+	}
+	
+	private void sendNext(){
+		
+		if(closed || !loaded || sending != null || retryScheduled || pending.isEmpty() || !isOnline()) return;
+		
+		final Entry entry = pending.values().iterator().next();
+		
+		//the log is written in order, the head is synced first
+		if(!entry.durable) return;
+		
+		AjaxCallback<Object> carrier;
+		
+		try{
+			carrier = fromRecord(entry.record);
+		}catch(Exception e){
+			//cannot be replayed
+			AQUtility.report(e);
+			pending.remove(entry.id);
+			log("done", entry.id, null, null);
+			sendNext();
+			return;
+		}
+		
+		sending = entry;
+		
+		carrier.listener(new Runnable() {
+			
+			@Override
+			public void run() {
+				sent(entry);
+			}
+		});
+		
+		sendingCarrier = carrier;
+		carrier.async(context);
+	}
+	
+	private void sent(Entry entry){
+		
+		if(closed) return;
+		
+		AjaxCallback<Object> carrier = sendingCarrier;
+		sendingCarrier = null;
+		sending = null;
+		
+		AjaxStatus status = carrier.getStatus();
+		int code = status.getCode();
+		
+		if(code == AjaxStatus.NETWORK_ERROR || code >= 500){
+			
+			retryDelay = Math.min(RETRY_MAX, Math.max(RETRY_MIN, retryDelay * 2));
+			
+			AQUtility.debug("queue retry", retryDelay);
+			
+			retryScheduled = true;
+			AQUtility.postDelayed(this, retryDelay);
+			return;
+		}
+		
+		retryDelay = 0;
+		
+		pending.remove(entry.id);
+		log("done", entry.id, null, null);
+		
+		if(entry.cb != null){
+			entry.cb.complete(carrier.getResult(), status);
+		}else if(handler != null){
+			AQUtility.invokeHandler(handler, callback, false, true, SENT_SIG, carrier.getUrl(), carrier.getResult(), status);
+		}
+		
+		sendNext();
+	}
+	
+	private static JSONObject toRecord(AbstractAjaxCallback<?, ?> cb) throws JSONException{
+		
+		if(cb.getAuth() != null){
+			throw new JSONException("Auth cannot be queued");
+		}
+		
+		if(cb.getProxy() != null){
+			throw new JSONException("Proxy cannot be queued");
+		}
+		
+		JSONObject record = new JSONObject();
+		
+		record.put("url", cb.getUrl());
+		record.put("type", cb.getType().getName());
+		record.put("encoding", cb.getEncoding());
+		
+		Map<String, String> headers = cb.getHeaders();
+		if(headers != null){
+			record.put("headers", new JSONObject(headers));
+		}
+		
+		//a session request replayed without its cookie would fail for good
+		Map<String, String> cookies = cb.getCookies();
+		if(cookies != null){
+			record.put("cookies", new JSONObject(cookies));
+		}
+		
+		Map<String, Object> params = cb.getParams();
+		if(params != null){
+			
+			JSONObject jo = new JSONObject();
+			
+			for(Map.Entry<String, Object> e: params.entrySet()){
+				
+				String name = e.getKey();
+				Object value = e.getValue();
+				
+				if(AQuery.POST_ENTITY.equals(name)){
+					if(value instanceof JSONObject || value instanceof JSONArray){
+						record.put("entity", value.toString());
+						continue;
+					}
+				}else if(value == null || value instanceof String || value instanceof Number || value instanceof Boolean){
+					if(value != null) jo.put(name, value.toString());
+					continue;
+				}
+				
+				throw new JSONException("Param cannot be queued: " + name);
+			}
+			
+			record.put("params", jo);
+		}
+		
+		return record;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static AjaxCallback<Object> fromRecord(JSONObject record) throws Exception{
+		
+		AjaxCallback<Object> cb = new AjaxCallback<Object>();
+		
+		cb.url(record.getString("url")).type((Class<Object>) Class.forName(record.getString("type")));
+		
+		JSONObject headers = record.optJSONObject("headers");
+		if(headers != null){
+			Iterator<?> keys = headers.keys();
+			while(keys.hasNext()){
+				String name = keys.next().toString();
+				cb.header(name, headers.getString(name));
+			}
+		}
+		
+		JSONObject cookies = record.optJSONObject("cookies");
+		if(cookies != null){
+			Iterator<?> keys = cookies.keys();
+			while(keys.hasNext()){
+				String name = keys.next().toString();
+				cb.cookie(name, cookies.getString(name));
+			}
+		}
+		
+		String encoding = record.optString("encoding", null);
+		if(encoding != null){
+			cb.encoding(encoding);
+		}
+		
+		JSONObject params = record.optJSONObject("params");
+		if(params != null){
+			
+			Map<String, Object> map = new HashMap<String, Object>();
+			
+			Iterator<?> keys = params.keys();
+			while(keys.hasNext()){
+				String name = keys.next().toString();
+				map.put(name, params.getString(name));
+			}
+			
+			String entity = record.optString("entity", null);
+			if(entity != null){
+				map.put(AQuery.POST_ENTITY, entity.startsWith("[") ? new JSONArray(entity) : new JSONObject(entity));
+			}
+			
+			cb.params(map);
+		}
+		
+		return cb;
+	}
+	
+	//then is posted to the ui thread once the line is written
+	private void log(final String op, final long id, final JSONObject record, final Runnable then){
+		
+		if(closed) return;
+		
+		final String line;
+		
+		try{
+			JSONObject jo = record == null ? new JSONObject() : new JSONObject(record.toString());
+			jo.put("op", op);
+			jo.put("id", id);
+			line = jo.toString();
+		}catch(JSONException e){
+			AQUtility.report(e);
+			return;
+		}
+		
+		writer.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				append(op, id, line);
+				
+				if(then != null){
+					AQUtility.post(then);
+				}
+			}
+		});
+	}
+	
+	//writer thread state, the pending add records as they are in the log
+	private final LinkedHashMap<Long, String> logged = new LinkedHashMap<Long, String>();
+	private int logDone;
+	
+	private List<JSONObject> load(){
+		
+		List<JSONObject> result = new ArrayList<JSONObject>();
+		
+		if(!file.exists()) return result;
+		
+		BufferedReader reader = null;
+		int done = 0;
+		boolean torn = false;
+		
+		try{
+			
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			
+			String line;
+			while((line = reader.readLine()) != null){
+				
+				JSONObject jo;
+				try{
+					jo = new JSONObject(line);
+				}catch(JSONException e){
+					//torn write of the last record
+					torn = true;
+					continue;
+				}
+				
+				long id = jo.optLong("id");
+				
+				if("add".equals(jo.optString("op"))){
+					logged.put(id, line);
+				}else{
+					logged.remove(id);
+					done++;
+				}
+			}
+			
+		}catch(IOException e){
+			AQUtility.report(e);
+		}finally{
+			AQUtility.close(reader);
+		}
+		
+		for(String line: logged.values()){
+			try{
+				result.add(new JSONObject(line));
+			}catch(JSONException e){
+			}
+		}
+		
+		//a torn line has no line end, the next record would be appended to it
+		if(done > 0 || torn){
+			compact();
+		}
+		
+		return result;
+	}
+	
+	private void append(String op, long id, String line){
+		
+		boolean add = "add".equals(op);
+		
+		if(add){
+			logged.put(id, line);
+		}else if(logged.remove(id) != null){
+			logDone++;
+		}
+		
+		if(!add && logDone >= COMPACT_MIN && logDone > logged.size()){
+			compact();
+			return;
+		}
+		
+		FileOutputStream fos = null;
+		
+		try{
+			
+			fos = new FileOutputStream(file, true);
+			fos.write((line + "\n").getBytes("UTF-8"));
+			
+			//a queued request must be on disk before it's sent, a lost completion only means a resend
+			if(add){
+				fos.getFD().sync();
+			}
+			
+		}catch(IOException e){
+			AQUtility.report(e);
+		}finally{
+			AQUtility.close(fos);
+		}
+	}
+	
+	//rewrite the log with only the pending requests
+	private void compact(){
+		
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = null;
+		
+		try{
+			
+			fos = new FileOutputStream(temp);
+			
+			StringBuilder sb = new StringBuilder();
+			for(String line: logged.values()){
+				sb.append(line).append('\n');
+			}
+			
+			fos.write(sb.toString().getBytes("UTF-8"));
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			
+			if(temp.renameTo(file)){
+				logDone = 0;
+			}
+			
+		}catch(IOException e){
+			AQUtility.report(e);
+		}finally{
+			AQUtility.close(fos);
+		}
+	}
+	
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.callback;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+
+import com.androidquery.util.Constants;
+
+/**
+ * Prefetch a group of urls to the file cache, and optionally decode images to the bitmap memcache.
+ *
+ * Urls are fetched in order as background requests, and no more fetches are started once the count or bytes budget is reached.
+ * Should be used in the main ui thread.
+ *
+ */
+public class Prefetch {
+	
+	private static final int RUNNING = 2;
+	
+	private List<String> urls = new ArrayList<String>();
+	private List<Integer> widths = new ArrayList<Integer>();
+	
+	private int maxCount = Integer.MAX_VALUE;
+	private long maxBytes = Long.MAX_VALUE;
+	private long expire;
+	private int policy = Constants.CACHE_DEFAULT;
+	
+	private Context context;
+	private List<AbstractAjaxCallback<?, ?>> running = new ArrayList<AbstractAjaxCallback<?, ?>>();
+	private int next;
+	private int count;
+	private long bytes;
+	private boolean cancelled;
+	private boolean starting;
+	
+	/**
+	 * Add a url to be prefetched to the file cache.
+	 *
+	 * @param url the url
+	 * @return self
+	 */
+	public Prefetch url(String url){
+		urls.add(url);
+		widths.add(-1);
+		return this;
+	}
+	
+	/**
+	 * Add urls to be prefetched to the file cache.
+	 *
+	 * @param urls the urls
+	 * @return self
+	 */
+	public Prefetch urls(List<String> urls){
+		for(String url: urls){
+			url(url);
+		}
+		return this;
+	}
+	
+	/**
+	 * Add an image url to be prefetched to the file cache and decoded to the bitmap memcache.
+	 *
+	 * @param url the image url
+	 * @param targetWidth the target width, 0 for non downsampling
+	 * @return self
+	 */
+	public Prefetch image(String url, int targetWidth){
+		urls.add(url);
+		widths.add(Math.max(0, targetWidth));
+		return this;
+	}
+	
+	/**
+	 * Add image urls to be prefetched to the file cache and decoded to the bitmap memcache.
+	 *
+	 * @param urls the image urls
+	 * @param targetWidth the target width, 0 for non downsampling
+	 * @return self
+	 */
+	public Prefetch images(List<String> urls, int targetWidth){
+		for(String url: urls){
+			image(url, targetWidth);
+		}
+		return this;
+	}
+	
+	/**
+	 * Set the max number of urls to be fetched from network. Cached urls are not counted.
+	 *
+	 * @param count the max count
+	 * @return self
+	 */
+	public Prefetch maxCount(int count){
+		this.maxCount = count;
+		return this;
+	}
+	
+	/**
+	 * Set the max bytes to be fetched from network.
+	 *
+	 * @param bytes the max bytes
+	 * @return self
+	 */
+	public Prefetch maxBytes(long bytes){
+		this.maxBytes = bytes;
+		return this;
+	}
+	
+	/**
+	 * The expire duration for file cached urls. 0 = never consider cached data as expired.
+	 *
+	 * @param expire the expire
+	 * @return self
+	 */
+	public Prefetch expire(long expire){
+		this.expire = expire;
+		return this;
+	}
+	
+	/**
+	 * Set the cache policy, such as Constants.CACHE_PERSISTENT.
+	 *
+	 * @param policy the policy
+	 * @return self
+	 */
+	public Prefetch policy(int policy){
+		this.policy = policy;
+		return this;
+	}
+	
+	/**
+	 * Start prefetching.
+	 *
+	 * @param context the context
+	 */
+	public void async(Context context){
+		
+		this.context = context.getApplicationContext();
+		
+		fill();
+	}
+	
+	/**
+	 * Cancel the prefetch. Pending urls are skipped and running requests are aborted.
+	 */
+	public void cancel(){
+		
+		cancelled = true;
+		
+		for(AbstractAjaxCallback<?, ?> cb: running){
+			cb.abort();
+		}
+		
+		running.clear();
+	}
+	
+	/**
+	 * Number of urls fetched from network so far.
+	 *
+	 * @return count
+	 */
+	public int getCount(){
+		return count;
+	}
+	
+	/**
+	 * Bytes fetched from network so far.
+	 *
+	 * @return bytes
+	 */
+	public long getBytes(){
+		return bytes;
+	}
+	
+	/**
+	 * Test if the prefetch is completed, cancelled or out of budget.
+	 *
+	 * @return done
+	 */
+	public boolean isDone(){
+		return running.isEmpty() && !hasNext();
+	}
+	
+	private boolean hasNext(){
+		return !cancelled && next < urls.size() && count < maxCount && bytes < maxBytes;
+	}
+	
+	private boolean start(){
+		
+		if(!hasNext()) return false;
+		
+		String url = urls.get(next);
+		int width = widths.get(next);
+		next++;
+		
+		final AbstractAjaxCallback<?, ?> cb;
+		
+		if(width < 0){
+			AjaxCallback<File> acb = new AjaxCallback<File>();
+			acb.url(url).type(File.class).fileCache(true).expire(expire);
+			cb = acb;
+		}else{
+			BitmapAjaxCallback bcb = new BitmapAjaxCallback();
+			bcb.url(url).targetWidth(width);
+			cb = bcb;
+		}
+		
+		cb.policy(policy);
+		cb.background(true);
+		
+		cb.listener(new Runnable() {
+			
+			@Override
+			public void run() {
+				done(cb);
+			}
+		});
+		
+		running.add(cb);
+		cb.async(context);
+		
+		return true;
+	}
+	
+	private void done(AbstractAjaxCallback<?, ?> cb){
+		
+		if(!running.remove(cb)) return;
+		
+		AjaxStatus status = cb.getStatus();
+		
+		if(status != null && status.getSource() == AjaxStatus.NETWORK){
+			
+			count++;
+			
+			byte[] data = status.getData();
+			File file = status.getFile();
+			
+			if(data != null){
+				bytes += data.length;
+			}else if(file != null){
+				bytes += file.length();
+			}
+		}
+		
+		//cached urls complete within start(), let the running loop pick up the next url instead of recursing
+		if(!starting) fill();
+	}
+	
+	private void fill(){
+		
+		starting = true;
+		while(running.size() < RUNNING && start());
+		starting = false;
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.androidquery.callback;
+
+import java.util.Random;
+
+/**
+ * When and how long to wait before a failed ajax request is sent again.
+ * 
+ * Network errors and the retry-on status codes are retried with exponential backoff and jitter. 
+ * Requests with params (posts) are not idempotent, and are only retried if allowed with nonIdempotent(true).
+ *
+ */
+public class RetryPolicy{
+	
+	private static final Random random = new Random();
+	
+	private int attempts = 3;
+	private long delay = 1000;
+	private long maxDelay = 30000;
+	private double jitter = 0.5;
+	private boolean nonIdempotent;
+	private int[] codes = {408, 429, 500, 502, 503, 504};
+	
+	/**
+	 * Set the max number of attempts, including the first one. Default is 3.
+	 *
+	 * @param attempts the attempts
+	 * @return self
+	 */
+	public RetryPolicy attempts(int attempts){
+		this.attempts = attempts;
+		return this;
+	}
+	
+	/**
+	 * Set the delay before the first retry, which doubles for every retry up to the max delay. Default is 1 to 30 seconds.
+	 *
+	 * @param delay the delay in milliseconds
+	 * @param maxDelay the max delay in milliseconds
+	 * @return self
+	 */
+	public RetryPolicy delay(long delay, long maxDelay){
+		this.delay = delay;
+		this.maxDelay = maxDelay;
+		return this;
+	}
+	
+	/**
+	 * Set the random part of the delay, from 0 to 1, so clients do not retry in lockstep. Default is 0.5, which waits 50% to 100% of the delay.
+	 *
+	 * @param jitter the jitter
+	 * @return self
+	 */
+	public RetryPolicy jitter(double jitter){
+		this.jitter = Math.max(0, Math.min(1, jitter));
+		return this;
+	}
+	
+	/**
+	 * Set the http status codes to be retried, in addition to network errors. Default is 408, 429, 500, 502, 503 and 504.
+	 *
+	 * @param codes the codes
+	 * @return self
+	 */
+	public RetryPolicy retryOn(int... codes){
+		this.codes = codes;
+		return this;
+	}
+	
+	/**
+	 * Allow requests with params to be retried. The server might receive them more than once.
+	 *
+	 * @param nonIdempotent retry non idempotent requests
+	 * @return self
+	 */
+	public RetryPolicy nonIdempotent(boolean nonIdempotent){
+		this.nonIdempotent = nonIdempotent;
+		return this;
+	}
+	
+	/**
+	 * Test if a failed attempt should be retried.
+	 *
+	 * @param attempt the number of retries made so far
+	 * @param code the status code of the attempt
+	 * @param idempotent if the request is idempotent
+	 * @return retry
+	 */
+	public boolean shouldRetry(int attempt, int code, boolean idempotent){
+		
+		if(attempt + 1 >= attempts) return false;
+		if(!idempotent && !nonIdempotent) return false;
+		
+		if(code == AjaxStatus.NETWORK_ERROR) return true;
+		
+		for(int c: codes){
+			if(c == code) return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Gets the delay before a retry.
+	 *
+	 * @param attempt the number of retries made so far
+	 * @param retryAfter the Retry-After header in seconds, 0 if none
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay(int attempt, long retryAfter){
+		
+		long result = delay << Math.min(attempt, 20);
+		result = Math.min(maxDelay, result);
+		
+		double r;
+		synchronized(random){
+			r = random.nextDouble();
+		}
+		
+		result = (long) (result * (1 - jitter * r));
+		
+		//the server knows better, but do not wait longer than the max delay
+		if(retryAfter > 0){
+			result = Math.max(result, Math.min(maxDelay, retryAfter * 1000));
+		}
+		
+		return result;
+	}
+	
+}
@@ -29,7 +29,9 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -41,6 +43,7 @@ import android.content.SharedPreferences.Editor;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.View;
@@ -134,7 +137,7 @@ public class AQUtility {
 		eh = handler;
 	}
 	
-	private static Map<String, Long> times = new HashMap<String, Long>();
+	private static Map<String, Long> times = Collections.synchronizedMap(new HashMap<String, Long>());
 	public static void time(String tag){
 		
 		times.put(tag, System.currentTimeMillis());
@@ -186,12 +189,45 @@ public class AQUtility {
 		
 		if(handler == null || callback == null) return null;
 		
-		Method method = null;
+		Dispatch dispatch = getDispatch(handler.getClass(), callback, fallback, cls, cls2);
+		
+		if(dispatch.method == null) return null;
+		
+		if(dispatch.params){
+			return dispatch.method.invoke(handler, params);
+		}else{
+			return dispatch.method.invoke(handler);
+		}
+		
+	}
+	
+	private static final Map<DispatchKey, Dispatch> dispatches = new HashMap<DispatchKey, Dispatch>();
+	
+	private static Dispatch getDispatch(Class<?> handler, String callback, boolean fallback, Class<?>[] cls, Class<?>[] cls2){
+		
+		DispatchKey key = new DispatchKey(handler, callback, fallback, cls, cls2);
+		
+		Dispatch dispatch;
+		synchronized(dispatches){
+			dispatch = dispatches.get(key);
+		}
+		
+		if(dispatch == null){
+			dispatch = resolve(handler, callback, fallback, cls, cls2);
+			synchronized(dispatches){
+				dispatches.put(key, dispatch);
+			}
+		}
+		
+		return dispatch;
+	}
+	
+	//resolved once per handler class, method name and signatures, including methods not found
+	private static Dispatch resolve(Class<?> handler, String callback, boolean fallback, Class<?>[] cls, Class<?>[] cls2){
 		
 		try{   
 			if(cls == null) cls = new Class[0];
-			method = handler.getClass().getMethod(callback, cls);
-			return method.invoke(handler, params);			
+			return new Dispatch(handler.getMethod(callback, cls), true);
 		}catch(NoSuchMethodException e){
 			//AQUtility.debug(e.getMessage());
 		}
@@ -201,19 +237,59 @@ public class AQUtility {
 			if(fallback){
 			
 				if(cls2 == null){
-					method = handler.getClass().getMethod(callback);	
-					return method.invoke(handler);
+					return new Dispatch(handler.getMethod(callback), false);
 				}else{
-					method = handler.getClass().getMethod(callback, cls2);
-					return method.invoke(handler, params);	
+					return new Dispatch(handler.getMethod(callback, cls2), true);
 				}
 				
 			}
 		}catch(NoSuchMethodException e){
 		}
 		
-		return null;
+		return new Dispatch(null, false);
+		
+	}
+	
+	private static class Dispatch{
+		
+		private final Method method;
+		private final boolean params;
 		
+		private Dispatch(Method method, boolean params){
+			this.method = method;
+			this.params = params;
+		}
+	}
+	
+	private static class DispatchKey{
+		
+		private final Class<?> handler;
+		private final String callback;
+		private final boolean fallback;
+		private final Class<?>[] cls;
+		private final Class<?>[] cls2;
+		
+		private DispatchKey(Class<?> handler, String callback, boolean fallback, Class<?>[] cls, Class<?>[] cls2){
+			this.handler = handler;
+			this.callback = callback;
+			this.fallback = fallback;
+			this.cls = cls;
+			this.cls2 = cls2;
+		}
+		
+		@Override
+		public int hashCode(){
+			return (handler.hashCode() * 31 + callback.hashCode()) * 31 + Arrays.hashCode(cls);
+		}
+		
+		@Override
+		public boolean equals(Object o){
+			
+			if(!(o instanceof DispatchKey)) return false;
+			
+			DispatchKey key = (DispatchKey) o;
+			return handler == key.handler && callback.equals(key.callback) && fallback == key.fallback && Arrays.equals(cls, key.cls) && Arrays.equals(cls2, key.cls2);
+		}
 	}
 	
 	public static void transparent(View view, boolean transparent){
@@ -274,6 +350,80 @@ public class AQUtility {
 		getHandler().postDelayed(run, delay);
 	}
 	
+	public static void removePost(Runnable run){
+		getHandler().removeCallbacks(run);
+	}
+	
+	private static final long FRAME = 16;
+	private static long FRAME_BUDGET = 8;
+	private static final LinkedList<Runnable> frameQueue = new LinkedList<Runnable>();
+	private static boolean frameScheduled;
+	
+	/**
+	 * Post a runnable to the main ui thread to be run with other runnables posted in the same frame. 
+	 * Runnables are run in order at the next frame boundary until the frame budget is used up, and the rest are run in the following frames.
+	 *
+	 * @param run the runnable
+	 */
+	public static void postFrame(Runnable run){
+		
+		synchronized(frameQueue){
+			frameQueue.add(run);
+			if(frameScheduled) return;
+			frameScheduled = true;
+		}
+		
+		scheduleFrame();
+	}
+	
+	/**
+	 * Sets the time in milliseconds that runnables posted with postFrame can use in each frame. Default is 8.
+	 *
+	 * @param budget the frame budget
+	 */
+	public static void setFrameBudget(long budget){
+		FRAME_BUDGET = Math.max(1, budget);
+	}
+	
+	private static void scheduleFrame(){
+		long now = SystemClock.uptimeMillis();
+		getHandler().postAtTime(frameDrain, now - now % FRAME + FRAME);
+	}
+	
+	private static final Runnable frameDrain = new Runnable() {
+		
+		@Override
+		public void run() {
+			
+			long start = SystemClock.uptimeMillis();
+			
+			while(true){
+				
+				Runnable run;
+				
+				synchronized(frameQueue){
+					run = frameQueue.poll();
+					if(run == null){
+						frameScheduled = false;
+						return;
+					}
+				}
+				
+				try{
+					run.run();
+				}catch(Exception e){
+					AQUtility.report(e);
+				}
+				
+				if(SystemClock.uptimeMillis() - start >= FRAME_BUDGET){
+					//out of budget, continue in next frame
+					scheduleFrame();
+					return;
+				}
+			}
+		}
+	};
+	
 	public static void apply(Editor editor){
 		
 		if(AQuery.SDK_INT >= 9){
@@ -477,6 +627,8 @@ public class AQUtility {
 	
 	public static void store(File file, byte[] data){
 		
+		Trace.begin("store", Trace.IO, null);
+		
 		try{
 			
 			if(file != null){			
@@ -484,6 +636,8 @@ public class AQUtility {
 			}
 		}catch(Exception e){
 			AQUtility.report(e);
+		}finally{
+			Trace.end("store", Trace.IO);
 		}
 		
 		
@@ -523,7 +677,8 @@ public class AQUtility {
 			Arrays.sort(files, new Common());
 			
 			if(testCleanNeeded(files, triggerSize)){
-				cleanCache(files, targetSize);
+				int deletes = cleanCache(files, targetSize);
+				CacheStats.get(CacheStats.FILE).evict(deletes);
 			}
 			
 			File temp = getTempDir();
@@ -557,7 +712,7 @@ public class AQUtility {
 		return false;
 	}
 	
-	private static void cleanCache(File[] files, long maxSize){
+	private static int cleanCache(File[] files, long maxSize){
 		
 		long total = 0;
 		int deletes = 0;
@@ -582,6 +737,8 @@ public class AQUtility {
 		}
 		
 		AQUtility.debug("deleted" , deletes);
+		
+		return deletes;
 	}
 	
 	public static int dip2pixel(Context context, float n){
@@ -35,15 +35,47 @@ public class BitmapCache extends LinkedHashMap<String, Bitmap>{
 	private int maxPixels;
 	private int maxTotalPixels;
 	private int pixels;
+	private CacheStats stats;
+	private boolean countLookups = true;
 	
 	public BitmapCache(int mc, int mp, int mtp){
+		this(mc, mp, mtp, new CacheStats(""));
+	}
+	
+	public BitmapCache(int mc, int mp, int mtp, CacheStats stats){
 		
 		super(8, 0.75F, true);
 		
 		this.maxCount = mc;
 		this.maxPixels = mp;
 		this.maxTotalPixels = mtp;
+		this.stats = stats;
+		
+	}
+	
+	/**
+	 * Count the hits and misses of get(). Turned off for a tier of a layered lookup, which counts them once for all tiers.
+	 *
+	 * @param count count lookups
+	 */
+	public void setCountLookups(boolean count){
+		this.countLookups = count;
+	}
+	
+	@Override
+	public Bitmap get(Object key){
 		
+		Bitmap result = super.get(key);
+		
+		if(countLookups){
+			if(result != null){
+				stats.hit(bytes(result));
+			}else{
+				stats.miss();
+			}
+		}
+		
+		return result;
 	}
 	
 	@Override
@@ -59,8 +91,10 @@ public class BitmapCache extends LinkedHashMap<String, Bitmap>{
 				pixels -= pixels(old);
 			}			
 			
+			stats.put(bytes(bm));
 			//AQUtility.debug("put", key);
 		}else{
+			stats.reject();
 			//AQUtility.debug("reject", px + ":" + bm.getWidth() + ":" + bm.getHeight() + ":" + key);
 		}
 		
@@ -93,6 +127,10 @@ public class BitmapCache extends LinkedHashMap<String, Bitmap>{
 		return bm.getWidth() * bm.getHeight();
 	}
 	
+	public static long bytes(Bitmap bm){
+		return (long) bm.getRowBytes() * bm.getHeight();
+	}
+	
 	private void shrink(){
 		
 		if(pixels > maxTotalPixels){
@@ -118,12 +156,16 @@ public class BitmapCache extends LinkedHashMap<String, Bitmap>{
 	@Override
 	public boolean removeEldestEntry(Map.Entry<String, Bitmap> eldest) {
         
+		int size = size();
+		
 		if(pixels > maxTotalPixels || size() > maxCount){
 			remove(eldest.getKey());
 		}
 		
 		shrink();
 		
+		stats.evict(size - size());
+		
 		return false;
     }
 	
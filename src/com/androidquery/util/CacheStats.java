@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hit, miss, put, rejection and eviction counters of a cache tier, such as the bitmap memcaches, the file cache and the network. Thread safe.
+ *
+ */
+public class CacheStats {
+
+	/**
+	 * All lookups of the bitmap memcache, one hit or miss each. The bitmap tiers below only count the hits they served.
+	 */
+	public static final String BITMAP = "bitmap";
+	public static final String BITMAP_SMALL = "bitmap.small";
+	public static final String BITMAP_BIG = "bitmap.big";
+	public static final String BITMAP_INVALID = "bitmap.invalid";
+	public static final String FILE = "file";
+	public static final String NETWORK = "network";
+	
+	private static final Map<String, CacheStats> tiers = new HashMap<String, CacheStats>();
+	
+	/**
+	 * Gets the live counters of a tier.
+	 *
+	 * @param tier the tier, such as CacheStats.FILE
+	 * @return the counters
+	 */
+	public static CacheStats get(String tier){
+		
+		synchronized(tiers){
+			CacheStats result = tiers.get(tier);
+			if(result == null){
+				result = new CacheStats(tier);
+				tiers.put(tier, result);
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * Gets a copy of the counters of all tiers sorted by name.
+	 *
+	 * @return the counters
+	 */
+	public static Map<String, CacheStats> snapshot(){
+		
+		Map<String, CacheStats> result = new TreeMap<String, CacheStats>();
+		
+		synchronized(tiers){
+			for(Map.Entry<String, CacheStats> entry: tiers.entrySet()){
+				result.put(entry.getKey(), entry.getValue().copy());
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Reset the counters of all tiers.
+	 */
+	public static void reset(){
+		
+		synchronized(tiers){
+			for(CacheStats stats: tiers.values()){
+				stats.clear();
+			}
+		}
+	}
+	
+	private final String tier;
+	private long hits;
+	private long misses;
+	private long puts;
+	private long rejections;
+	private long evictions;
+	private long hitBytes;
+	private long putBytes;
+	
+	CacheStats(String tier){
+		this.tier = tier;
+	}
+	
+	public synchronized void hit(long bytes){
+		hits++;
+		hitBytes += bytes;
+	}
+	
+	public synchronized void miss(){
+		misses++;
+	}
+	
+	public synchronized void put(long bytes){
+		puts++;
+		putBytes += bytes;
+	}
+	
+	public synchronized void reject(){
+		rejections++;
+	}
+	
+	public synchronized void evict(int count){
+		evictions += count;
+	}
+	
+	private synchronized void clear(){
+		hits = 0;
+		misses = 0;
+		puts = 0;
+		rejections = 0;
+		evictions = 0;
+		hitBytes = 0;
+		putBytes = 0;
+	}
+	
+	public String getTier(){
+		return tier;
+	}
+	
+	public synchronized long getHits(){
+		return hits;
+	}
+	
+	public synchronized long getMisses(){
+		return misses;
+	}
+	
+	public synchronized long getPuts(){
+		return puts;
+	}
+	
+	public synchronized long getRejections(){
+		return rejections;
+	}
+	
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+	
+	/**
+	 * Gets the bytes served by the tier.
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getHitBytes(){
+		return hitBytes;
+	}
+	
+	/**
+	 * Gets the bytes stored to the tier.
+	 *
+	 * @return bytes
+	 */
+	public synchronized long getPutBytes(){
+		return putBytes;
+	}
+	
+	/**
+	 * Gets the ratio of hits to lookups, 0 if there are no lookups.
+	 *
+	 * @return hit ratio
+	 */
+	public synchronized float getHitRatio(){
+		long total = hits + misses;
+		if(total == 0) return 0;
+		return (float) hits / total;
+	}
+	
+	/**
+	 * Return a copy of the counters.
+	 *
+	 * @return the copy
+	 */
+	public synchronized CacheStats copy(){
+		
+		CacheStats result = new CacheStats(tier);
+		result.hits = hits;
+		result.misses = misses;
+		result.puts = puts;
+		result.rejections = rejections;
+		result.evictions = evictions;
+		result.hitBytes = hitBytes;
+		result.putBytes = putBytes;
+		
+		return result;
+	}
+	
+	@Override
+	public synchronized String toString(){
+		return tier + " hits:" + hits + " misses:" + misses + " puts:" + puts + " rejections:" + rejections + " evictions:" + evictions + " hitBytes:" + hitBytes + " putBytes:" + putBytes;
+	}
+	
+}
@@ -18,7 +18,9 @@ package com.androidquery.util;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.View;
@@ -35,9 +37,13 @@ import android.widget.ExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.Gallery;
 import android.widget.ListAdapter;
+import android.widget.ProgressBar;
 
 import java.io.File;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import com.androidquery.AQuery;
 import com.androidquery.callback.BitmapAjaxCallback;
@@ -168,9 +174,126 @@ public class Common implements Comparator<File>, Runnable, OnClickListener, OnLo
 		
 		checkScrolledBottom(view, scrollState);
 		
+		if(prefetchMethod != null) prefetch(view, first, visibleItemCount, totalItemCount);
+		
 		if(osl != null) osl.onScroll(view, first, visibleItemCount, totalItemCount);
 		
 	}
+	
+	private static final Class<?>[] PREFETCH_SIG = {int.class};
+	private static final int LOOKAHEAD = 500;
+	
+	private Object prefetchHandler;
+	private String prefetchMethod;
+	private int prefetchWidth;
+	private int prefetchCount;
+	
+	private int lastFirst = -1;
+	private long lastTime;
+	private float velocity;
+	private int direction = 1;
+	private int lastFrom = -1;
+	private int lastTo = -1;
+	//positions in the window, mapped to their prefetch, or to null if there is nothing to prefetch
+	private Map<Integer, BitmapAjaxCallback> prefetches = new HashMap<Integer, BitmapAjaxCallback>();
+	private Adapter prefetchAdapter;
+	private int prefetchTotal = -1;
+	
+	public Common prefetch(Object handler, String method, int targetWidth, int count){
+		
+		this.prefetchHandler = handler;
+		this.prefetchMethod = method;
+		this.prefetchWidth = targetWidth;
+		this.prefetchCount = count;
+		
+		return this;
+	}
+	
+	private void prefetch(AbsListView view, int first, int visibleItemCount, int totalItemCount){
+		
+		//positions refer to the adapter data, a new adapter or item count maps them to other urls
+		Adapter adapter = view.getAdapter();
+		
+		if(adapter != prefetchAdapter || totalItemCount != prefetchTotal){
+			prefetchAdapter = adapter;
+			prefetchTotal = totalItemCount;
+			prefetches.clear();
+			lastFrom = -1;
+			lastTo = -1;
+		}
+		
+		long now = SystemClock.uptimeMillis();
+		
+		if(first != lastFirst){
+			
+			if(lastFirst >= 0){
+				long diff = Math.max(1, now - lastTime);
+				velocity = Math.abs(first - lastFirst) * 1000f / diff;
+				direction = first > lastFirst ? 1 : -1;
+			}
+			
+			lastFirst = first;
+			lastTime = now;
+		}
+		
+		//prefetch the items that will scroll into view within the lookahead time, but at least count items
+		int n = prefetchCount + (int) (velocity * LOOKAHEAD / 1000);
+		n = Math.min(n, prefetchCount * 3);
+		
+		int from, to;
+		
+		if(direction > 0){
+			from = first + visibleItemCount;
+			to = from + n - 1;
+		}else{
+			to = first - 1;
+			from = to - n + 1;
+		}
+		
+		from = Math.max(0, from);
+		to = Math.min(totalItemCount - 1, to);
+		
+		//onScroll is called for every pixel, positions are only looked up again when the window moves
+		if(from == lastFrom && to == lastTo) return;
+		
+		lastFrom = from;
+		lastTo = to;
+		
+		//cancel prefetches that are no longer ahead of the scrolling
+		Iterator<Map.Entry<Integer, BitmapAjaxCallback>> iter = prefetches.entrySet().iterator();
+		
+		while(iter.hasNext()){
+			
+			Map.Entry<Integer, BitmapAjaxCallback> entry = iter.next();
+			int pos = entry.getKey();
+			
+			if(pos < from || pos > to){
+				
+				BitmapAjaxCallback cb = entry.getValue();
+				
+				if(cb != null && (pos < first || pos >= first + visibleItemCount)){
+					cb.abort();
+				}
+				
+				iter.remove();
+			}
+		}
+		
+		for(int pos = from; pos <= to; pos++){
+			
+			if(prefetches.containsKey(pos)) continue;
+			
+			Object url = AQUtility.invokeHandler(prefetchHandler, prefetchMethod, false, true, PREFETCH_SIG, pos);
+			
+			if(url == null || BitmapAjaxCallback.getMemoryCached(url.toString(), prefetchWidth) != null){
+				prefetches.put(pos, null);
+				continue;
+			}
+			
+			prefetches.put(pos, BitmapAjaxCallback.prefetch(view.getContext(), url.toString(), prefetchWidth));
+		}
+		
+	}
 
 	public int getScrollState(){
 		return scrollState;
@@ -532,6 +655,30 @@ public class Common implements Comparator<File>, Runnable, OnClickListener, OnLo
 		}
 		
 	}
+	
+	public static void setProgress(Object p, String url, int percent){
+		
+		if(p instanceof ProgressBar){
+			
+			ProgressBar pb = (ProgressBar) p;
+			
+			Object tag = pb.getTag(AQuery.TAG_URL);
+			if(tag == null || tag.equals(url)){
+				pb.setIndeterminate(false);
+				pb.setMax(100);
+				pb.setProgress(percent);
+			}
+			
+		}else if(p instanceof ProgressDialog){
+			
+			ProgressDialog pd = (ProgressDialog) p;
+			pd.setIndeterminate(false);
+			pd.setMax(100);
+			pd.setProgress(percent);
+			
+		}
+		
+	}
 
 
 
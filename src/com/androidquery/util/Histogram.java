@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+/**
+ * A latency histogram with power of 2 buckets in millseconds. Thread safe.
+ *
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 24;
+	
+	private long[] counts = new long[BUCKETS];
+	private long count;
+	private long total;
+	private long max;
+	
+	/**
+	 * Add a value in millseconds.
+	 *
+	 * @param time the time
+	 */
+	public synchronized void add(long time){
+		
+		if(time < 0) time = 0;
+		
+		counts[bucket(time)]++;
+		count++;
+		total += time;
+		max = Math.max(max, time);
+	}
+	
+	//bucket 0 is 0ms, bucket i is [2^(i-1), 2^i) ms
+	private static int bucket(long time){
+		int b = 64 - Long.numberOfLeadingZeros(time);
+		return Math.min(b, BUCKETS - 1);
+	}
+	
+	public synchronized long getCount(){
+		return count;
+	}
+	
+	public synchronized long getTotal(){
+		return total;
+	}
+	
+	public synchronized long getMax(){
+		return max;
+	}
+	
+	public synchronized long getMean(){
+		if(count == 0) return 0;
+		return total / count;
+	}
+	
+	/**
+	 * Gets the approximated percentile, which is the upper bound of the bucket containing the percentile, capped by the max value.
+	 *
+	 * @param percentile the percentile, such as 50 or 99
+	 * @return the time in millseconds
+	 */
+	public synchronized long getPercentile(double percentile){
+		
+		if(count == 0) return 0;
+		
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long sum = 0;
+		
+		for(int i = 0; i < BUCKETS; i++){
+			sum += counts[i];
+			if(sum >= rank && sum > 0){
+				long upper = i == 0 ? 0 : (1L << i) - 1;
+				return Math.min(upper, max);
+			}
+		}
+		
+		return max;
+	}
+	
+	/**
+	 * Return a copy of this histogram.
+	 *
+	 * @return the copy
+	 */
+	public synchronized Histogram copy(){
+		
+		Histogram result = new Histogram();
+		System.arraycopy(counts, 0, result.counts, 0, BUCKETS);
+		result.count = count;
+		result.total = total;
+		result.max = max;
+		
+		return result;
+	}
+	
+	@Override
+	public synchronized String toString(){
+		return "count:" + count + " mean:" + getMean() + " p50:" + getPercentile(50) + " p99:" + getPercentile(99) + " max:" + max;
+	}
+	
+}
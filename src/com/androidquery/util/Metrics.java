@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A global registry of named latency histograms, such as ajax latency per host and per source, and named gauges
+ * of current values, such as the circuit breaker state of each host. Thread safe.
+ * 
+ * Ajax requests are recorded only when enabled. Gauges are always set.
+ *
+ */
+public class Metrics {
+
+	private static volatile boolean enabled;
+	private static final Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+	private static final Map<String, Long> gauges = new HashMap<String, Long>();
+	
+	/**
+	 * Enable recording of ajax requests. Default is false.
+	 *
+	 * @param enabled enabled
+	 */
+	public static void setEnabled(boolean enabled){
+		Metrics.enabled = enabled;
+	}
+	
+	public static boolean isEnabled(){
+		return enabled;
+	}
+	
+	/**
+	 * Record a time in millseconds to the named histogram.
+	 *
+	 * @param name the name
+	 * @param time the time
+	 */
+	public static void record(String name, long time){
+		
+		Histogram h;
+		
+		synchronized(histograms){
+			h = histograms.get(name);
+			if(h == null){
+				h = new Histogram();
+				histograms.put(name, h);
+			}
+		}
+		
+		h.add(time);
+	}
+	
+	/**
+	 * Gets a copy of the named histogram.
+	 *
+	 * @param name the name
+	 * @return the histogram, null if nothing recorded
+	 */
+	public static Histogram get(String name){
+		
+		synchronized(histograms){
+			Histogram h = histograms.get(name);
+			if(h == null) return null;
+			return h.copy();
+		}
+	}
+	
+	/**
+	 * Gets a copy of all histograms sorted by name.
+	 *
+	 * @return the histograms
+	 */
+	public static Map<String, Histogram> snapshot(){
+		
+		Map<String, Histogram> result = new TreeMap<String, Histogram>();
+		
+		synchronized(histograms){
+			for(Map.Entry<String, Histogram> entry: histograms.entrySet()){
+				result.put(entry.getKey(), entry.getValue().copy());
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Set the current value of the named gauge.
+	 *
+	 * @param name the name
+	 * @param value the value
+	 */
+	public static void setGauge(String name, long value){
+		
+		synchronized(gauges){
+			gauges.put(name, value);
+		}
+	}
+	
+	/**
+	 * Gets the current value of the named gauge.
+	 *
+	 * @param name the name
+	 * @return the value, null if never set
+	 */
+	public static Long getGauge(String name){
+		
+		synchronized(gauges){
+			return gauges.get(name);
+		}
+	}
+	
+	/**
+	 * Gets a copy of all gauges sorted by name.
+	 *
+	 * @return the gauges
+	 */
+	public static Map<String, Long> gauges(){
+		
+		synchronized(gauges){
+			return new TreeMap<String, Long>(gauges);
+		}
+	}
+	
+	/**
+	 * Remove all recorded histograms and gauges.
+	 */
+	public static void reset(){
+		
+		synchronized(histograms){
+			histograms.clear();
+		}
+		
+		synchronized(gauges){
+			gauges.clear();
+		}
+	}
+	
+}
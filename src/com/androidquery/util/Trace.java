@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 - AndroidQuery.com (tinyeeliu@gmail.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.androidquery.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.json.JSONObject;
+
+/**
+ * Records begin and end events of ajax stages, disk io and callbacks with thread ids, 
+ * and writes them in the Chrome trace event format, which can be opened with chrome://tracing.
+ * 
+ * Events are kept in a ring buffer, the oldest events are dropped when it's full. Thread safe.
+ *
+ */
+public class Trace {
+
+	public static final String AJAX = "ajax";
+	public static final String IO = "io";
+	public static final String UI = "ui";
+	
+	private static int MAX_EVENTS = 20000;
+	private static volatile boolean enabled;
+	
+	private static String[] names;
+	private static String[] cats;
+	private static String[] args;
+	private static char[] phases;
+	private static long[] times;
+	private static long[] tids;
+	private static int next;
+	private static int count;
+	//thread names by id, in arrays so recording an event does not box the id
+	private static long[] threadIds = new long[16];
+	private static String[] threadNames = new String[16];
+	private static int threadCount;
+	
+	/**
+	 * Enable tracing. Default is false.
+	 *
+	 * @param enabled enabled
+	 */
+	public static void setEnabled(boolean enabled){
+		Trace.enabled = enabled;
+	}
+	
+	public static boolean isEnabled(){
+		return enabled;
+	}
+	
+	/**
+	 * Sets the max number of events kept. Clears recorded events. Default is 20000.
+	 *
+	 * @param max the max events
+	 */
+	public static synchronized void setMaxEvents(int max){
+		MAX_EVENTS = Math.max(1, max);
+		names = null;
+		clear();
+	}
+	
+	/**
+	 * Record the begin of an event.
+	 *
+	 * @param name the event name
+	 * @param cat the category, such as Trace.AJAX
+	 * @param arg an argument shown with the event, such as the url, can be null
+	 */
+	public static void begin(String name, String cat, String arg){
+		if(enabled) add(name, cat, arg, 'B');
+	}
+	
+	/**
+	 * Record the end of an event.
+	 *
+	 * @param name the event name
+	 * @param cat the category
+	 */
+	public static void end(String name, String cat){
+		if(enabled) add(name, cat, null, 'E');
+	}
+	
+	private static synchronized void add(String name, String cat, String arg, char phase){
+		
+		if(names == null){
+			names = new String[MAX_EVENTS];
+			cats = new String[MAX_EVENTS];
+			args = new String[MAX_EVENTS];
+			phases = new char[MAX_EVENTS];
+			times = new long[MAX_EVENTS];
+			tids = new long[MAX_EVENTS];
+		}
+		
+		Thread thread = Thread.currentThread();
+		long tid = thread.getId();
+		
+		addThread(tid, thread);
+		
+		names[next] = name;
+		cats[next] = cat;
+		args[next] = arg;
+		phases[next] = phase;
+		times[next] = System.nanoTime() / 1000;
+		tids[next] = tid;
+		
+		next = (next + 1) % MAX_EVENTS;
+		count = Math.min(count + 1, MAX_EVENTS);
+	}
+	
+	private static void addThread(long tid, Thread thread){
+		
+		for(int i = 0; i < threadCount; i++){
+			if(threadIds[i] == tid) return;
+		}
+		
+		if(threadCount == threadIds.length){
+			
+			long[] ids = new long[threadCount * 2];
+			String[] names = new String[threadCount * 2];
+			
+			System.arraycopy(threadIds, 0, ids, 0, threadCount);
+			System.arraycopy(threadNames, 0, names, 0, threadCount);
+			
+			threadIds = ids;
+			threadNames = names;
+		}
+		
+		threadIds[threadCount] = tid;
+		threadNames[threadCount] = thread.getName();
+		threadCount++;
+	}
+	
+	/**
+	 * Remove all recorded events.
+	 */
+	public static synchronized void clear(){
+		next = 0;
+		count = 0;
+		for(int i = 0; i < threadCount; i++){
+			threadNames[i] = null;
+		}
+		threadCount = 0;
+		if(names != null){
+			for(int i = 0; i < MAX_EVENTS; i++){
+				names[i] = null;
+				args[i] = null;
+			}
+		}
+	}
+	
+	/**
+	 * Write the recorded events to a file in the Chrome trace event json format.
+	 *
+	 * @param file the file
+	 * @throws IOException
+	 */
+	public static synchronized void write(File file) throws IOException{
+		
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		
+		try{
+			write(w);
+		}finally{
+			AQUtility.close(w);
+		}
+	}
+	
+	/**
+	 * Write the recorded events in the Chrome trace event json format.
+	 *
+	 * @param w the writer
+	 * @throws IOException
+	 */
+	public static synchronized void write(Writer w) throws IOException{
+		
+		w.write("{\"traceEvents\":[");
+		
+		boolean first = true;
+		
+		for(int i = 0; i < threadCount; i++){
+			if(!first) w.write(",\n");
+			first = false;
+			w.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + threadIds[i] + ",\"args\":{\"name\":" + JSONObject.quote(threadNames[i]) + "}}");
+		}
+		
+		int start = (next - count + MAX_EVENTS) % MAX_EVENTS;
+		
+		for(int n = 0; n < count; n++){
+			
+			int i = (start + n) % MAX_EVENTS;
+			
+			if(!first) w.write(",\n");
+			first = false;
+			
+			w.write("{\"name\":");
+			w.write(JSONObject.quote(names[i]));
+			w.write(",\"cat\":");
+			w.write(JSONObject.quote(cats[i]));
+			w.write(",\"ph\":\"" + phases[i] + "\",\"ts\":" + times[i] + ",\"pid\":1,\"tid\":" + tids[i]);
+			
+			if(args[i] != null){
+				w.write(",\"args\":{\"arg\":");
+				w.write(JSONObject.quote(args[i]));
+				w.write("}");
+			}
+			
+			w.write("}");
+		}
+		
+		w.write("]}");
+		w.flush();
+	}
+	
+}
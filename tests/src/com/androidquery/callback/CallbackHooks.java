@@ -0,0 +1,21 @@
+package com.androidquery.callback;
+
+import java.io.File;
+
+import android.content.Context;
+
+/**
+ * Exposes the package level internals of the offline queue to the tests.
+ *
+ */
+public class CallbackHooks {
+
+	public static OfflineQueue reloadQueue(Context context, String name) throws InterruptedException{
+		return OfflineQueue.reload(context, name);
+	}
+	
+	public static File getQueueFile(Context context, String name){
+		return OfflineQueue.getFile(context, name);
+	}
+	
+}
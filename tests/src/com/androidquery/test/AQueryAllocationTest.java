@@ -0,0 +1,242 @@
+package com.androidquery.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import com.androidquery.callback.AjaxCallback;
+import com.androidquery.callback.BitmapAjaxCallback;
+import com.androidquery.util.AQUtility;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+
+/**
+ * Allocation budgets of the critical paths, measured against a loopback server.
+ * 
+ * Each scenario is warmed up, then the average allocated objects and bytes per operation are compared with the budgets below. 
+ * Counts are global, so the budgets leave headroom for unrelated allocations of other threads.
+ * 
+ * The budgets below are ceilings worked out from the payloads, not device measurements. 
+ * Run once with -e allocation record to keep the measured values of a device, see Baselines. 
+ * Later runs on that device then use the measured values plus HEADROOM as the budgets.
+ *
+ */
+public class AQueryAllocationTest extends AbstractTest<AQueryTestActivity> {
+
+	private static final int WARMUP = 5;
+	private static final int OPS = 20;
+	
+	private static final int PAYLOAD = 64 * 1024;
+	
+	//allowed growth over the values recorded on the device
+	private static final float HEADROOM = 1.25f;
+	
+	//budgets per operation, as {objects, bytes}
+	
+	//the cache key, the callback and the drawable, no pixel data
+	private static final long[] IMAGE_MEMORY_HIT = {50, 4 * 1024};
+	
+	//the payload holds about 2,200 items of {"id":i,"name":"item i"}. Reading, decoding and parsing it 
+	//allocates 2.1 MB/op on OpenJDK 17 with -XX:-CompactStrings (utf-16 strings as on dalvik) and json-20080701, 
+	//about 12 retained and 10 temporary objects per item
+	private static final long[] JSON_FILE_HIT = {60000, 3 * 1024 * 1024};
+	
+	//the body buffer sized from the content length and the copy buffers
+	private static final long[] NETWORK_GET = {1500, 3 * PAYLOAD};
+	
+	//the payload is streamed from the params, plus the upload buffer
+	private static final long[] MULTIPART_UPLOAD = {1500, 3 * PAYLOAD};
+	
+	private interface Op{
+		void run(int i) throws Exception;
+	}
+	
+	private LoopbackServer server;
+	private Baselines baselines;
+	private boolean record;
+	
+	public AQueryAllocationTest() {		
+		super(AQueryTestActivity.class);
+    }
+	
+	@Override
+	protected void setUp() throws Exception {
+		
+		super.setUp();
+		
+		Bitmap bm = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
+		
+		server = new LoopbackServer().image(baos.toByteArray());
+		server.start();
+		
+		baselines = new Baselines("allocation");
+		record = Baselines.RECORD.equals(Baselines.getArgument(getInstrumentation(), "allocation"));
+		
+		clearCache();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		
+		server.stop();
+		
+		if(record){
+			baselines.save("aquery allocations per op");
+		}
+		
+		super.tearDown();
+	}
+	
+	private void budget(String name, long[] budget, Op op) throws Exception{
+		
+		for(int i = 0; i < WARMUP; i++){
+			op.run(i);
+		}
+		
+		System.gc();
+		
+		Debug.startAllocCounting();
+		Debug.resetAllCounts();
+		
+		for(int i = 0; i < OPS; i++){
+			op.run(i);
+		}
+		
+		long count = Debug.getGlobalAllocCount() / OPS;
+		long size = Debug.getGlobalAllocSize() / OPS;
+		
+		Debug.stopAllocCounting();
+		
+		//runtimes without allocation counting report nothing
+		if(count == 0 && size == 0){
+			AQUtility.debug("alloc " + name, "not counted");
+			return;
+		}
+		
+		String key = name.replace(' ', '_');
+		
+		if(record){
+			baselines.put(key + ".objects", count);
+			baselines.put(key + ".bytes", size);
+			AQUtility.debug("alloc " + name, count + " objects/op, " + size + " bytes/op recorded");
+			return;
+		}
+		
+		long objects = baselines.get(key + ".objects");
+		long bytes = baselines.get(key + ".bytes");
+		
+		if(objects > 0 && bytes > 0){
+			budget = new long[]{(long) (objects * HEADROOM), (long) (bytes * HEADROOM)};
+		}
+		
+		AQUtility.debug("alloc " + name, count + " objects/op, " + size + " bytes/op (budget " + budget[0] + ", " + budget[1] + ")");
+		
+		assertTrue(name + " allocated " + count + " objects/op", count <= budget[0]);
+		assertTrue(name + " allocated " + size + " bytes/op", size <= budget[1]);
+	}
+	
+	public void testImageMemoryHit() throws Exception{
+		
+		final String url = server.getUrl("/image");
+		
+		BitmapAjaxCallback cb = new BitmapAjaxCallback();
+		cb.url(url);
+		cb.async(getActivity());
+		cb.block();
+		
+		assertNotNull(BitmapAjaxCallback.getMemoryCached(url, 0));
+		
+		budget("image memory hit", IMAGE_MEMORY_HIT, new Op() {
+			
+			@Override
+			public void run(int i) {
+				
+				getInstrumentation().runOnMainSync(new Runnable() {
+					
+					@Override
+					public void run() {
+						aq.id(R.id.image).image(url, true, true);
+					}
+				});
+			}
+		});
+		
+		assertNotNull(aq.getImageView().getDrawable());
+	}
+	
+	public void testJsonFileHit() throws Exception{
+		
+		final String url = server.getUrl("/json/" + PAYLOAD);
+		
+		AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();
+		cb.url(url).type(JSONObject.class).fileCache(true);
+		cb.async(getActivity());
+		cb.block();
+		
+		waitSec(2000);
+		
+		final int served = server.getServed();
+		
+		budget("json file hit", JSON_FILE_HIT, new Op() {
+			
+			@Override
+			public void run(int i) {
+				
+				AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();
+				cb.url(url).type(JSONObject.class).fileCache(true);
+				cb.async(getActivity());
+				cb.block();
+				
+				assertNotNull(cb.getResult());
+			}
+		});
+		
+		assertEquals(served, server.getServed());
+	}
+	
+	public void testNetworkGet() throws Exception{
+		
+		budget("network get", NETWORK_GET, new Op() {
+			
+			@Override
+			public void run(int i) {
+				
+				AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>();
+				cb.url(server.getUrl("/bytes/" + PAYLOAD + "?i=" + i)).type(byte[].class);
+				cb.async(getActivity());
+				cb.block();
+				
+				assertEquals(PAYLOAD, cb.getResult().length);
+			}
+		});
+	}
+	
+	public void testMultipartUpload() throws Exception{
+		
+		final byte[] data = new byte[PAYLOAD];
+		
+		budget("multipart upload", MULTIPART_UPLOAD, new Op() {
+			
+			@Override
+			public void run(int i) {
+				
+				Map<String, Object> params = new HashMap<String, Object>();
+				params.put("name", "upload " + i);
+				params.put("data", data);
+				
+				AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>();
+				cb.url(server.getUrl("/bytes/16")).type(byte[].class).params(params);
+				cb.async(getActivity());
+				cb.block();
+				
+				assertEquals(200, cb.getStatus().getCode());
+			}
+		});
+	}
+	
+}
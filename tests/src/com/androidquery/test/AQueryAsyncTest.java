@@ -1,8 +1,15 @@
 package com.androidquery.test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -23,6 +30,7 @@ import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
@@ -30,7 +38,18 @@ import org.xmlpull.v1.XmlPullParser;
 import com.androidquery.AQuery;
 import com.androidquery.callback.AjaxCallback;
 import com.androidquery.callback.AjaxStatus;
+import com.androidquery.callback.Batch;
+import com.androidquery.callback.CallbackHooks;
+import com.androidquery.callback.BatchTransport;
+import com.androidquery.callback.CircuitBreaker;
+import com.androidquery.callback.ContentWriter;
+import com.androidquery.callback.DnsCache;
+import com.androidquery.callback.JsonBatchFormat;
+import com.androidquery.callback.OfflineQueue;
+import com.androidquery.callback.RetryPolicy;
 import com.androidquery.util.AQUtility;
+import com.androidquery.util.Histogram;
+import com.androidquery.util.Metrics;
 import com.androidquery.util.XmlDom;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -125,6 +144,54 @@ public class AQueryAsyncTest extends AbstractTest<AQueryTestActivity> {
         assertNotNull(jo);       
         assertNotNull(jo.opt("responseData"));
         
+    }
+	
+	public void testAjaxTimings() {
+		
+		String url = "http://www.google.com/uds/GnewsSearch?q=Obama&v=1.0&t=" + System.currentTimeMillis();
+		
+		Metrics.reset();
+		Metrics.setEnabled(true);
+		
+		AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>(){
+			
+			@Override
+			public void callback(String url, JSONObject jo, AjaxStatus status) {
+				
+				done(url, jo, status);
+				
+			}
+			
+		};
+		
+		cb.url(url).type(JSONObject.class);		
+        aq.ajax(cb);
+        
+        waitAsync();
+        waitSec();
+        
+        Metrics.setEnabled(false);
+        
+        assertNotNull(result);
+        assertEquals(AjaxStatus.NETWORK, status.getSource());
+        
+        long total = 0;
+        for(int i = AjaxStatus.TIME_QUEUE; i <= AjaxStatus.TIME_CALLBACK; i++){
+        	assertTrue(status.getTiming(i) >= 0);
+        	total += status.getTiming(i);
+        }
+        
+        assertTrue(status.getTiming(AjaxStatus.TIME_FIRST_BYTE) > 0);
+        assertTrue(total >= status.getTiming(AjaxStatus.TIME_FIRST_BYTE));
+        
+        Histogram network = Metrics.get("source.network");
+        assertNotNull(network);
+        assertEquals(1, network.getCount());
+        
+        Histogram host = Metrics.get("host.www.google.com");
+        assertNotNull(host);
+        assertTrue(host.getPercentile(99) >= host.getPercentile(50));
+        
     }
 	
 	//Test: public <K> T ajax(String url, Class<K> type, AjaxCallback<K> callback)
@@ -853,6 +920,884 @@ public class AQueryAsyncTest extends AbstractTest<AQueryTestActivity> {
 	}
 	
 	
+	public void testAjaxContentEncoding() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer();
+		server.start();
+		
+		try{
+			
+			server.gzip(true);
+			
+			AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();
+			cb.url(server.getUrl("/json/4096")).type(JSONObject.class);
+			cb.async(getActivity());
+			cb.block();
+			
+			assertNotNull(cb.getResult());
+			assertEquals("gzip", cb.getStatus().getEncoding());
+			
+			server.gzip(false).deflate(true);
+			
+			cb = new AjaxCallback<JSONObject>();
+			cb.url(server.getUrl("/json/4096")).type(JSONObject.class);
+			cb.async(getActivity());
+			cb.block();
+			
+			assertNotNull(cb.getResult());
+			assertEquals("deflate", cb.getStatus().getEncoding());
+			
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < 1000; i++){
+				sb.append("{\"id\":").append(i).append(",\"name\":\"item\"},");
+			}
+			
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("json", sb.toString());
+			
+			AjaxCallback<byte[]> post = new AjaxCallback<byte[]>();
+			post.url(server.getUrl("/bytes/16")).type(byte[].class).params(params).requestEncoding("gzip");
+			post.async(getActivity());
+			post.block();
+			
+			assertEquals(200, post.getStatus().getCode());
+			assertEquals("gzip", server.getRequestEncoding());
+			assertTrue(server.getReceived() < sb.length() / 4);
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxPostJsonStream() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer();
+		server.start();
+		
+		try{
+			
+			JSONArray items = new JSONArray();
+			for(int i = 0; i < 1000; i++){
+				JSONObject item = new JSONObject();
+				item.put("id", i);
+				item.put("name", "item \"" + i + "\"");
+				item.put("price", i * 0.5);
+				item.put("active", i % 2 == 0);
+				items.put(item);
+			}
+			
+			JSONObject jo = new JSONObject();
+			jo.put("items", items);
+			jo.put("note", JSONObject.NULL);
+			
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put(AQuery.POST_ENTITY, jo);
+			
+			AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();
+			cb.url(server.getUrl("/echo")).type(JSONObject.class).params(params);
+			cb.async(getActivity());
+			cb.block();
+			
+			JSONObject result = cb.getResult();
+			assertNotNull(result);
+			assertEquals(1000, result.getJSONArray("items").length());
+			assertEquals("item \"999\"", result.getJSONArray("items").getJSONObject(999).getString("name"));
+			assertTrue(result.isNull("note"));
+			
+			//writer callback with compression
+			params.put(AQuery.POST_ENTITY, new ContentWriter() {
+				
+				@Override
+				public void write(Writer writer) throws IOException {
+					writer.write("[");
+					for(int i = 0; i < 1000; i++){
+						if(i > 0) writer.write(",");
+						writer.write(String.valueOf(i));
+					}
+					writer.write("]");
+				}
+			});
+			
+			AjaxCallback<JSONArray> acb = new AjaxCallback<JSONArray>();
+			acb.url(server.getUrl("/echo")).type(JSONArray.class).params(params).requestEncoding("gzip");
+			acb.async(getActivity());
+			acb.block();
+			
+			assertEquals("gzip", server.getRequestEncoding());
+			assertEquals(1000, acb.getResult().length());
+			assertEquals(999, acb.getResult().getInt(999));
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	private volatile Batch batchResult;
+	
+	public void batchCb(Batch batch){
+		batchResult = batch;
+	}
+	
+	//every request of the batch notifies debugWait, poll for the batch callback instead
+	private void waitBatch(){
+		for(int i = 0; i < 100 && batchResult == null; i++){
+			waitSec(100);
+		}
+	}
+	
+	public void testAjaxBatch() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer().latency(200);
+		server.start();
+		
+		try{
+			
+			Batch batch = new Batch().handler(this, "batchCb");
+			
+			for(int i = 0; i < 5; i++){
+				AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();
+				cb.url(server.getUrl("/json/1024?i=" + i)).type(JSONObject.class);
+				batch.add(cb);
+			}
+			
+			long start = System.currentTimeMillis();
+			
+			aq.batch(batch);
+			
+			waitBatch();
+			
+			long elapsed = System.currentTimeMillis() - start;
+			
+			assertSame(batch, batchResult);
+			assertFalse(batchResult.isTimedOut());
+			
+			for(int i = 0; i < batchResult.size(); i++){
+				assertTrue(batchResult.isCompleted(i));
+				assertNotNull(batchResult.getResult(i));
+				assertEquals(200, batchResult.getStatus(i).getCode());
+			}
+			
+			//requests run concurrently, not one round trip after another
+			assertTrue(elapsed < 5 * 200);
+			
+			//partial results on timeout
+			server.latency(3000);
+			batchResult = null;
+			
+			AjaxCallback<JSONObject> slow = new AjaxCallback<JSONObject>();
+			slow.url(server.getUrl("/json/1024?slow")).type(JSONObject.class);
+			
+			batch = new Batch().add(slow).timeout(300).handler(this, "batchCb");
+			aq.batch(batch);
+			
+			waitBatch();
+			
+			assertSame(batch, batchResult);
+			assertTrue(batchResult.isTimedOut());
+			assertFalse(batchResult.isCompleted(0));
+			assertNull(batchResult.getResult(0));
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxBatchSetup() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer();
+		server.start();
+		
+		try{
+			
+			Batch batch = new Batch().handler(this, "batchCb");
+			
+			for(int i = 0; i < 3; i++){
+				AjaxCallback<Profile> cb = new AjaxCallback<Profile>();
+				cb.url(server.getUrl("/json/64?i=" + i)).type(Profile.class);
+				batch.add(cb);
+			}
+			
+			//the transformer set on aq applies to each request, as with ajax()
+			aq.transformer(new GsonTransformer()).batch(batch);
+			
+			waitBatch();
+			
+			assertSame(batch, batchResult);
+			
+			for(int i = 0; i < batchResult.size(); i++){
+				assertTrue(batchResult.getResult(i) instanceof Profile);
+			}
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxAbortNotifiesBatch() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer().latency(500);
+		server.start();
+		
+		AjaxCallback.setNetworkLimit(1);
+		
+		try{
+			
+			Batch batch = new Batch().handler(this, "batchCb");
+			
+			AjaxCallback<JSONObject> first = new AjaxCallback<JSONObject>();
+			first.url(server.getUrl("/json/64?i=0")).type(JSONObject.class);
+			batch.add(first);
+			
+			final AjaxCallback<JSONObject> second = new AjaxCallback<JSONObject>();
+			second.url(server.getUrl("/json/64?i=1")).type(JSONObject.class);
+			batch.add(second);
+			
+			final Batch b = batch;
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					aq.batch(b);
+					//queued behind the first request on the only network thread
+					second.abort();
+				}
+			});
+			
+			waitBatch();
+			
+			//the batch completes even though the aborted request never called back
+			assertSame(batch, batchResult);
+			assertFalse(batchResult.isTimedOut());
+			assertEquals(200, batchResult.getStatus(0).getCode());
+			assertEquals("aborted", batchResult.getStatus(1).getMessage());
+			assertEquals(1, server.getServed());
+			
+		}finally{
+			AjaxCallback.setNetworkLimit(4);
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxBatchTransport() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer().latency(100);
+		server.start();
+		
+		AjaxCallback.setBatchTransport("127.0.0.1", new BatchTransport(server.getUrl("/batch"), new JsonBatchFormat()).window(100));
+		
+		try{
+			
+			Batch batch = new Batch().handler(this, "batchCb");
+			
+			for(int i = 0; i < 10; i++){
+				AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();
+				cb.url(server.getUrl("/json/512?i=" + i)).type(JSONObject.class);
+				batch.add(cb);
+			}
+			
+			AjaxCallback<JSONObject> missing = new AjaxCallback<JSONObject>();
+			missing.url(server.getUrl("/missing")).type(JSONObject.class);
+			batch.add(missing);
+			
+			aq.batch(batch);
+			
+			waitBatch();
+			
+			assertNotNull(batchResult);
+			
+			for(int i = 0; i < 10; i++){
+				assertEquals(200, batchResult.getStatus(i).getCode());
+				assertNotNull(batchResult.getResult(i));
+			}
+			
+			assertEquals(404, batchResult.getStatus(10).getCode());
+			
+			//one round trip for all requests
+			assertEquals(1, server.getBatches());
+			assertEquals(1, server.getServed());
+			
+			//a batch part would drop the cookie, so the request is sent on its own
+			AjaxCallback<JSONObject> session = new AjaxCallback<JSONObject>();
+			session.url(server.getUrl("/json/64")).type(JSONObject.class).cookie("session", "1");
+			session.async(getActivity());
+			session.block();
+			
+			assertEquals(200, session.getStatus().getCode());
+			assertEquals(1, server.getBatches());
+			assertEquals(2, server.getServed());
+			
+		}finally{
+			AjaxCallback.setBatchTransport("127.0.0.1", null);
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxOfflineQueue() throws Exception{
+		
+		final LoopbackServer server = new LoopbackServer().errorRate(1);
+		server.start();
+		
+		try{
+			
+			final OfflineQueue queue = OfflineQueue.get(getActivity(), "test-" + System.currentTimeMillis());
+			final List<AjaxStatus> completed = new ArrayList<AjaxStatus>();
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					for(int i = 0; i < 3; i++){
+						
+						Map<String, Object> params = new HashMap<String, Object>();
+						params.put("count", i);
+						
+						AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>(){
+							
+							@Override
+							public void callback(String url, byte[] data, AjaxStatus status) {
+								completed.add(status);
+							}
+						};
+						cb.url(server.getUrl("/bytes/16")).type(byte[].class).params(params);
+						
+						//the last two share a key, only the newest is kept
+						queue.add(cb, i == 0 ? null : "counter");
+					}
+				}
+			});
+			
+			waitSec(2000);
+			
+			//the server fails every request, so they stay queued
+			assertEquals(2, queue.size());
+			assertTrue(completed.isEmpty());
+			
+			server.errorRate(0);
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					queue.retry();
+				}
+			});
+			
+			for(int i = 0; i < 50 && completed.size() < 2; i++){
+				waitSec(100);
+			}
+			
+			assertEquals(2, completed.size());
+			assertEquals(200, completed.get(0).getCode());
+			assertEquals(0, queue.size());
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	private final List<AjaxStatus> replayed = new ArrayList<AjaxStatus>();
+	
+	public void queueCb(String url, Object result, AjaxStatus status){
+		replayed.add(status);
+	}
+	
+	//a new queue loads the log as after a process restart
+	private OfflineQueue reloadQueue(final String name){
+		
+		final OfflineQueue[] queue = new OfflineQueue[1];
+		
+		getInstrumentation().runOnMainSync(new Runnable() {
+			
+			@Override
+			public void run() {
+				try{
+					queue[0] = CallbackHooks.reloadQueue(getActivity(), name).handler(AQueryAsyncTest.this, "queueCb");
+				}catch(InterruptedException e){
+					AQUtility.report(e);
+				}
+			}
+		});
+		
+		assertNotNull(queue[0]);
+		
+		return queue[0];
+	}
+	
+	private void retryQueue(final OfflineQueue queue){
+		
+		getInstrumentation().runOnMainSync(new Runnable() {
+			
+			@Override
+			public void run() {
+				queue.retry();
+			}
+		});
+	}
+	
+	public void testAjaxOfflineQueueReplay() throws Exception{
+		
+		final LoopbackServer server = new LoopbackServer().errorRate(1);
+		server.start();
+		
+		try{
+			
+			String name = "replay-" + System.currentTimeMillis();
+			
+			final OfflineQueue queue = OfflineQueue.get(getActivity(), name);
+			final List<AjaxStatus> completed = new ArrayList<AjaxStatus>();
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					for(int i = 0; i < 2; i++){
+						
+						AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>(){
+							
+							@Override
+							public void callback(String url, byte[] data, AjaxStatus status) {
+								completed.add(status);
+							}
+						};
+						cb.url(server.getUrl("/bytes/16?i=" + i)).type(byte[].class).cookie("session", "s" + i);
+						
+						queue.add(cb);
+					}
+				}
+			});
+			
+			waitSec(2000);
+			
+			assertEquals(2, queue.size());
+			
+			//the cookies are logged so the replay is sent with them
+			String log = new String(AQUtility.toBytes(new FileInputStream(CallbackHooks.getQueueFile(getActivity(), name))), "UTF-8");
+			assertTrue(log.contains("\"session\":\"s1\""));
+			
+			//a proxy cannot be restored after a restart
+			AjaxCallback<byte[]> proxied = new AjaxCallback<byte[]>();
+			proxied.url(server.getUrl("/bytes/16")).type(byte[].class).proxy("127.0.0.1", 8080);
+			
+			try{
+				queue.add(proxied);
+				fail();
+			}catch(IllegalArgumentException e){
+			}
+			
+			//the requests outlive the queue and are reported to the handler of the new one
+			OfflineQueue reloaded = reloadQueue(name);
+			
+			server.errorRate(0);
+			retryQueue(reloaded);
+			
+			for(int i = 0; i < 100 && replayed.size() < 2; i++){
+				waitSec(100);
+			}
+			
+			assertEquals(2, replayed.size());
+			assertEquals(200, replayed.get(0).getCode());
+			assertEquals(0, reloaded.size());
+			assertTrue(completed.isEmpty());
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxOfflineQueueTornLog() throws Exception{
+		
+		final LoopbackServer server = new LoopbackServer().errorRate(1);
+		server.start();
+		
+		try{
+			
+			String name = "torn-" + System.currentTimeMillis();
+			String url = server.getUrl("/bytes/16");
+			
+			String add1 = "{\"op\":\"add\",\"id\":1,\"url\":\"" + url + "?i=1\",\"type\":\"[B\"}";
+			String add2 = "{\"op\":\"add\",\"id\":2,\"url\":\"" + url + "?i=2\",\"type\":\"[B\"}";
+			String done1 = "{\"op\":\"done\",\"id\":1}";
+			String torn = "{\"op\":\"add\",\"id\":3,\"url\":\"" + url;
+			
+			File file = CallbackHooks.getQueueFile(getActivity(), name);
+			AQUtility.write(file, (add1 + "\n" + add2 + "\n" + done1 + "\n" + torn).getBytes("UTF-8"));
+			
+			OfflineQueue queue = reloadQueue(name);
+			
+			for(int i = 0; i < 50 && queue.size() == 0; i++){
+				waitSec(100);
+			}
+			
+			assertEquals(1, queue.size());
+			
+			//the completed record and the torn line are compacted away, so the next record starts on its own line
+			String log = new String(AQUtility.toBytes(new FileInputStream(file)), "UTF-8");
+			assertEquals(add2 + "\n", log);
+			
+			server.errorRate(0);
+			retryQueue(queue);
+			
+			for(int i = 0; i < 100 && replayed.size() < 1; i++){
+				waitSec(100);
+			}
+			
+			assertEquals(1, replayed.size());
+			assertEquals(200, replayed.get(0).getCode());
+			assertEquals(0, queue.size());
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxRetry() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer().errorRate(1);
+		server.start();
+		
+		try{
+			
+			AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>(){
+				
+				@Override
+				public void callback(String url, byte[] data, AjaxStatus status) {
+					done(url, data, status);
+				}
+			};
+			
+			cb.url(server.getUrl("/bytes/16")).type(byte[].class).retry(new RetryPolicy().attempts(3).delay(200, 1000).jitter(0));
+			
+			long start = System.currentTimeMillis();
+			
+			aq.ajax(cb);
+			waitAsync();
+			
+			//the first attempt and two retries, 200ms and 400ms apart
+			assertEquals(500, status.getCode());
+			assertEquals(3, server.getServed());
+			assertTrue(System.currentTimeMillis() - start >= 600);
+			
+			//posts are not retried unless allowed
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("name", "value");
+			
+			cb = new AjaxCallback<byte[]>(){
+				
+				@Override
+				public void callback(String url, byte[] data, AjaxStatus status) {
+					done(url, data, status);
+				}
+			};
+			
+			cb.url(server.getUrl("/bytes/16")).type(byte[].class).params(params).retry(new RetryPolicy().delay(200, 1000));
+			
+			aq.ajax(cb);
+			waitAsync();
+			
+			assertEquals(500, status.getCode());
+			assertEquals(4, server.getServed());
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxCircuitBreaker() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer().errorRate(1);
+		server.start();
+		
+		AjaxCallback.setCircuitBreaker(2, 500);
+		
+		try{
+			
+			String url = server.getUrl("/json/64");
+			
+			for(int i = 0; i < 2; i++){
+				aq.ajax(url + "?i=" + i, JSONObject.class, this, "jsonCb");
+				waitAsync();
+				assertEquals(500, status.getCode());
+			}
+			
+			assertEquals(CircuitBreaker.OPEN, CircuitBreaker.getState("127.0.0.1"));
+			assertEquals(Long.valueOf(CircuitBreaker.OPEN), Metrics.getGauge("circuit.127.0.0.1"));
+			
+			//fails fast without reaching the server
+			aq.ajax(url + "?i=2", JSONObject.class, this, "jsonCb");
+			waitAsync();
+			
+			assertEquals(AjaxStatus.NETWORK_ERROR, status.getCode());
+			assertEquals("circuit open", status.getMessage());
+			assertEquals(2, server.getServed());
+			
+			//the probe after the open time closes the circuit
+			server.errorRate(0);
+			waitSec(600);
+			
+			aq.ajax(url + "?i=3", JSONObject.class, this, "jsonCb");
+			waitAsync();
+			
+			assertEquals(200, status.getCode());
+			assertEquals(CircuitBreaker.CLOSED, CircuitBreaker.getState("127.0.0.1"));
+			
+		}finally{
+			AjaxCallback.setCircuitBreaker(0, 0);
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxCircuitBreakerLimited() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer().errorRate(1).latency(200);
+		server.start();
+		
+		AjaxCallback.setCircuitBreaker(2, 500);
+		AjaxCallback.setAdaptiveNetworkLimit(1, 1);
+		
+		try{
+			
+			String url = server.getUrl("/json/64");
+			
+			for(int i = 0; i < 2; i++){
+				AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>();
+				cb.url(url + "?i=" + i).type(JSONObject.class);
+				cb.async(getActivity());
+				cb.block();
+			}
+			
+			assertEquals(CircuitBreaker.OPEN, CircuitBreaker.getState("127.0.0.1"));
+			
+			server.errorRate(0);
+			waitSec(600);
+			
+			//the first request is the probe, the second waits for the only slot and is let through once the probe closes the circuit
+			AjaxCallback<JSONObject> probe = new AjaxCallback<JSONObject>();
+			probe.url(url + "?i=2").type(JSONObject.class);
+			probe.async(getActivity());
+			
+			AjaxCallback<JSONObject> queued = new AjaxCallback<JSONObject>();
+			queued.url(url + "?i=3").type(JSONObject.class);
+			queued.async(getActivity());
+			
+			probe.block();
+			queued.block();
+			
+			assertEquals(200, probe.getStatus().getCode());
+			assertEquals(200, queued.getStatus().getCode());
+			assertEquals(CircuitBreaker.CLOSED, CircuitBreaker.getState("127.0.0.1"));
+			
+		}finally{
+			AjaxCallback.setCircuitBreaker(0, 0);
+			AjaxCallback.setAdaptiveNetworkLimit(0, 0);
+			server.stop();
+		}
+		
+	}
+	
+	public void testAjaxPrewarm() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer();
+		server.start();
+		
+		try{
+			
+			AjaxCallback.prewarm(server.getUrl("/"));
+			
+			for(int i = 0; i < 50 && server.getConnections() == 0; i++){
+				waitSec(100);
+			}
+			
+			//connected without a request
+			assertEquals(1, server.getConnections());
+			assertEquals(0, server.getServed());
+			
+			String url = server.getUrl("/json/64");
+			aq.ajax(url, JSONObject.class, this, "jsonCb");
+			waitAsync();
+			
+			//the request reuses the prewarmed connection
+			assertEquals(200, status.getCode());
+			assertEquals(1, server.getConnections());
+			assertEquals(1, server.getServed());
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	public void testDnsCache() throws Exception{
+		
+		DnsCache.clear();
+		
+		InetAddress[] addresses = DnsCache.lookup("localhost");
+		assertTrue(addresses.length > 0);
+		
+		//served from the cache
+		assertSame(addresses, DnsCache.lookup("localhost"));
+		
+		DnsCache.setTtl(0);
+		
+		try{
+			assertNotSame(addresses, DnsCache.lookup("localhost"));
+		}finally{
+			DnsCache.setTtl(60000);
+		}
+		
+	}
+	
+	public void testAjaxPostMultiStream() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer();
+		server.start();
+		
+		try{
+			
+			File file = File.createTempFile("upload", "bin");
+			AQUtility.write(file, new byte[1024 * 1024]);
+			
+			Map<String, Object> params = new LinkedHashMap<String, Object>();
+			params.put("name", "stream");
+			params.put("file", file);
+			params.put("data", new byte[100 * 1024]);
+			
+			final long[] progress = new long[2];
+			
+			AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>(){
+				
+				@Override
+				public void uploadProgress(String url, long current, long total) {
+					progress[0] = current;
+					progress[1] = total;
+				}
+			};
+			cb.url(server.getUrl("/bytes/16")).type(byte[].class).params(params);
+			cb.async(getActivity());
+			cb.block();
+			
+			waitSec();
+			
+			assertEquals(200, cb.getStatus().getCode());
+			assertTrue(progress[1] > file.length());
+			assertEquals(progress[1], progress[0]);
+			assertEquals(progress[1], server.getReceived());
+			
+			//unknown length is sent chunked
+			params.put("stream", new ByteArrayInputStream(new byte[50 * 1024]));
+			
+			cb = new AjaxCallback<byte[]>(){
+				
+				@Override
+				public void uploadProgress(String url, long current, long total) {
+					progress[0] = current;
+					progress[1] = total;
+				}
+			};
+			cb.url(server.getUrl("/bytes/16")).type(byte[].class).params(params);
+			cb.async(getActivity());
+			cb.block();
+			
+			waitSec();
+			
+			assertEquals(200, cb.getStatus().getCode());
+			assertEquals(-1, progress[1]);
+			
+			file.delete();
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+
+	public void testAjaxPostMultiResize() throws Exception{
+		
+		LoopbackServer server = new LoopbackServer();
+		server.start();
+		
+		try{
+			
+			Bitmap bm = Bitmap.createBitmap(2000, 1500, Bitmap.Config.ARGB_8888);
+			bm.eraseColor(0xFF336699);
+			
+			File file = File.createTempFile("photo", ".jpg");
+			FileOutputStream fos = new FileOutputStream(file);
+			bm.compress(Bitmap.CompressFormat.JPEG, 100, fos);
+			fos.close();
+			bm.recycle();
+			
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("photo", file);
+			
+			AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>();
+			cb.url(server.getUrl("/bytes/16")).type(byte[].class).params(params).uploadImage(500, 80);
+			cb.async(getActivity());
+			cb.block();
+			
+			assertEquals(200, cb.getStatus().getCode());
+			
+			AQUtility.debug("resized upload", file.length() + "->" + server.getReceived());
+			assertTrue(server.getReceived() < file.length());
+			
+			file.delete();
+			
+			//formats other than jpeg and png are sent as they are
+			File bmp = writeBmp(600, 400);
+			params.put("photo", bmp);
+			
+			long received = server.getReceived();
+			
+			cb = new AjaxCallback<byte[]>();
+			cb.url(server.getUrl("/bytes/16")).type(byte[].class).params(params).uploadImage(300, 80);
+			cb.async(getActivity());
+			cb.block();
+			
+			assertEquals(200, cb.getStatus().getCode());
+			assertTrue(server.getReceived() - received > bmp.length());
+			
+			bmp.delete();
+			
+		}finally{
+			server.stop();
+		}
+		
+	}
+	
+	//an uncompressed 24 bit bmp, which BitmapFactory decodes but Bitmap cannot compress to
+	private File writeBmp(int width, int height) throws IOException{
+		
+		int row = (width * 3 + 3) / 4 * 4;
+		int size = 54 + row * height;
+		
+		ByteBuffer bb = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		bb.put((byte) 'B').put((byte) 'M').putInt(size).putInt(0).putInt(54);
+		bb.putInt(40).putInt(width).putInt(height).putShort((short) 1).putShort((short) 24);
+		bb.putInt(0).putInt(row * height).putInt(2835).putInt(2835).putInt(0).putInt(0);
+		
+		File file = File.createTempFile("photo", ".bmp");
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(bb.array());
+		fos.close();
+		
+		return file;
+	}
+	
+
 	public void testAjaxCookieGet(){
 		
 		
@@ -998,6 +1943,78 @@ public class AQueryAsyncTest extends AbstractTest<AQueryTestActivity> {
 		waitAsync();
 	}
 	
+	private static class StringTransform extends AjaxCallback<String>{
+		
+		private StringTransform(){
+			type(String.class);
+		}
+		
+		private String get(byte[] data){
+			return transform("http://www.androidquery.com/charset", data, new AjaxStatus());
+		}
+	}
+	
+	public void testAjaxSniffCharset() throws UnsupportedEncodingException{
+		
+		String text = "\u4e2d\u6587";
+		StringTransform t = new StringTransform();
+		
+		byte[] big5 = ("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=big5\"></head><body>" + text + "</body></html>").getBytes("big5");
+		assertTrue(t.get(big5).contains(text));
+		
+		byte[] html5 = ("<!DOCTYPE html><meta charset='gbk'><p>" + text).getBytes("gbk");
+		assertTrue(t.get(html5).contains(text));
+		
+		byte[] xml = ("<?xml version=\"1.0\" encoding=\"big5\"?><a>" + text + "</a>").getBytes("big5");
+		assertTrue(t.get(xml).contains(text));
+		
+		byte[] bom = ("\ufeff<p>" + text).getBytes("utf-8");
+		assertEquals("<p>" + text, t.get(bom));
+		
+		byte[] plain = ("<p>" + text).getBytes("utf-8");
+		assertEquals("<p>" + text, t.get(plain));
+	}
+	
+	private String getCachedString(String url, byte[] data, byte[] charset){
+		
+		File cacheDir = AQUtility.getCacheDir(getActivity());
+		AQUtility.write(AQUtility.getCacheFile(cacheDir, url), data);
+		
+		File charsetFile = AQUtility.getCacheFile(cacheDir, url + "#charset");
+		if(charset != null){
+			AQUtility.write(charsetFile, charset);
+		}else{
+			charsetFile.delete();
+		}
+		
+		AjaxCallback<String> cb = new AjaxCallback<String>();
+		cb.url(url).type(String.class).fileCache(true);
+		cb.async(getActivity());
+		cb.block();
+		
+		assertEquals(AjaxStatus.FILE, cb.getStatus().getSource());
+		
+		return cb.getResult();
+	}
+	
+	public void testAjaxCachedCharset() throws UnsupportedEncodingException{
+		
+		String text = "\u4e2d\u6587";
+		String html = "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=big5\"></head><body>" + text + "</body></html>";
+		
+		//older versions rewrote the bytes to utf-8 and kept no charset file
+		String legacy = getCachedString("http://www.androidquery.com/charset/legacy", html.getBytes("utf-8"), null);
+		assertTrue(legacy.contains(text));
+		
+		//the original bytes with an empty charset file are sniffed
+		String raw = getCachedString("http://www.androidquery.com/charset/raw", html.getBytes("big5"), new byte[0]);
+		assertTrue(raw.contains(text));
+		
+		//the header charset kept in the charset file wins over the bytes
+		String header = getCachedString("http://www.androidquery.com/charset/header", ("<p>" + text).getBytes("gbk"), "gbk".getBytes("utf-8"));
+		assertEquals("<p>" + text, header);
+	}
+	
 	private String getCharset(String html){
 		
 		String pattern = "<(META|meta) [^>]*http-equiv[^>]*\"Content-Type\"[^>]*>";
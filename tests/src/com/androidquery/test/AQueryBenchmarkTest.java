@@ -0,0 +1,333 @@
+package com.androidquery.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import com.androidquery.callback.AbstractAjaxCallback;
+import com.androidquery.callback.AjaxCallback;
+import com.androidquery.callback.AjaxStatus;
+import com.androidquery.util.AQUtility;
+import com.androidquery.util.BitmapCache;
+import com.androidquery.util.XmlDom;
+
+import android.graphics.Bitmap;
+
+/**
+ * Microbenchmarks of the cpu bound hot paths. No network is used.
+ * 
+ * Each benchmark is warmed up, then measured for several runs with a fixed number of operations, 
+ * and the median ns/op is compared to the baseline recorded on the same device.
+ * 
+ * The benchmarks are not part of the default run. Record the baselines once per device with
+ * 
+ * adb shell am instrument -w -e benchmark record -e class com.androidquery.test.AQueryBenchmarkTest com.androidquery.test/android.test.InstrumentationTestRunner
+ * 
+ * and compare later runs to them with -e benchmark compare. See Baselines for where they are kept.
+ *
+ */
+public class AQueryBenchmarkTest extends AbstractTest<AQueryTestActivity> {
+
+	private static final int WARMUP = 3;
+	private static final int RUNS = 5;
+	
+	//a median this many times slower than the baseline is a regression
+	private static final float TOLERANCE = 1.5f;
+	
+	private interface Op{
+		Object run(int i) throws Exception;
+	}
+	
+	private int sink;
+	
+	private String mode;
+	private Baselines baselines;
+	
+	public AQueryBenchmarkTest() {		
+		super(AQueryTestActivity.class);
+    }
+	
+	@Override
+	public void runBare() throws Throwable {
+		
+		mode = Baselines.getArgument(getInstrumentation(), "benchmark");
+		
+		if(!Baselines.RECORD.equals(mode) && !Baselines.COMPARE.equals(mode)){
+			AQUtility.debug("benchmark skipped", getName());
+			return;
+		}
+		
+		super.runBare();
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		
+		super.setUp();
+		
+		baselines = new Baselines("benchmark");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		
+		if(Baselines.RECORD.equals(mode)){
+			baselines.save("aquery benchmark medians in ns/op");
+		}
+		
+		super.tearDown();
+	}
+	
+	private void check(String name, long median){
+		
+		if(Baselines.RECORD.equals(mode)){
+			baselines.put(name, median);
+			return;
+		}
+		
+		long baseline = baselines.get(name);
+		assertTrue("no baseline for " + name + " in " + baselines.getFile() + ", run with -e benchmark record first", baseline > 0);
+		
+		long limit = (long) (baseline * TOLERANCE);
+		
+		assertTrue(name + " regressed: " + median + " ns/op, baseline " + baseline + " ns/op", median <= limit);
+	}
+	
+	private long bench(String name, int ops, Op op) throws Exception{
+		
+		long[] results = new long[RUNS];
+		
+		for(int r = 0; r < WARMUP + RUNS; r++){
+			
+			long start = System.nanoTime();
+			
+			for(int i = 0; i < ops; i++){
+				Object result = op.run(i);
+				//keep the result alive so the work is not optimized away
+				if(result != null) sink += result.hashCode();
+			}
+			
+			long time = (System.nanoTime() - start) / ops;
+			
+			if(r >= WARMUP){
+				results[r - WARMUP] = time;
+			}
+		}
+		
+		Arrays.sort(results);
+		long median = results[RUNS / 2];
+		
+		AQUtility.debug("bench " + name, median + " ns/op (min " + results[0] + ", max " + results[RUNS - 1] + ")");
+		
+		check(name, median);
+		
+		return median;
+	}
+	
+	//exposes the protected transform of the ajax pipeline
+	private static class Transform<T> extends AjaxCallback<T>{
+		
+		private Transform(Class<T> type){
+			type(type);
+		}
+		
+		private T get(byte[] data){
+			return transform("http://www.androidquery.com/bench", data, new AjaxStatus());
+		}
+	}
+	
+	public void testCacheFileName() throws Exception{
+		
+		final File dir = AQUtility.getCacheDir(getActivity());
+		
+		final String[] urls = new String[64];
+		for(int i = 0; i < urls.length; i++){
+			urls[i] = "http://www.androidquery.com/images/photo_" + i + ".jpg?width=200&height=200";
+		}
+		
+		bench("cacheFileName", 2000, new Op() {
+			
+			@Override
+			public Object run(int i) {
+				return AQUtility.getCacheFile(dir, urls[i % urls.length]);
+			}
+		});
+		
+	}
+	
+	public void testBitmapCacheLru() throws Exception{
+		
+		final BitmapCache cache = new BitmapCache(20, 10000, 250000);
+		
+		final String[] keys = new String[40];
+		final Bitmap[] bms = new Bitmap[keys.length];
+		
+		for(int i = 0; i < keys.length; i++){
+			keys[i] = "http://www.androidquery.com/images/" + i + "#100";
+			bms[i] = Bitmap.createBitmap(50, 50, Bitmap.Config.ARGB_8888);
+		}
+		
+		bench("bitmapCacheLru", 20000, new Op() {
+			
+			@Override
+			public Object run(int i) {
+				
+				int k = (i * 7) % keys.length;
+				
+				//mostly hits with some puts causing evictions
+				Bitmap bm = cache.get(keys[k]);
+				if(bm == null){
+					cache.put(keys[k], bms[k]);
+				}
+				return bm;
+			}
+		});
+		
+	}
+	
+	private byte[] readXml() throws Exception{
+		return AQUtility.toBytes(getActivity().getResources().openRawResource(R.raw.xml_test));
+	}
+	
+	public void testXmlDomParse() throws Exception{
+		
+		final byte[] data = readXml();
+		
+		bench("xmlDomParse", 50, new Op() {
+			
+			@Override
+			public Object run(int i) throws Exception {
+				return new XmlDom(data);
+			}
+		});
+		
+	}
+	
+	public void testXmlDomQuery() throws Exception{
+		
+		final XmlDom xml = new XmlDom(readXml());
+		
+		bench("xmlDomQuery", 500, new Op() {
+			
+			@Override
+			public Object run(int i) {
+				
+				List<XmlDom> entries = xml.tags("entry");
+				
+				int count = 0;
+				for(XmlDom entry: entries){
+					String title = entry.text("title");
+					if(title != null) count += title.length();
+				}
+				return count;
+			}
+		});
+		
+	}
+	
+	public void testJsonTransform() throws Exception{
+		
+		StringBuilder sb = new StringBuilder("{\"items\":[");
+		for(int i = 0; i < 100; i++){
+			if(i > 0) sb.append(",");
+			sb.append("{\"id\":" + i + ",\"title\":\"photo " + i + "\",\"url\":\"http://www.androidquery.com/images/" + i + ".jpg\"}");
+		}
+		sb.append("]}");
+		
+		final byte[] data = sb.toString().getBytes("UTF-8");
+		final Transform<JSONObject> t = new Transform<JSONObject>(JSONObject.class);
+		
+		bench("jsonTransform", 200, new Op() {
+			
+			@Override
+			public Object run(int i) {
+				return t.get(data);
+			}
+		});
+		
+	}
+	
+	public void testCharsetTransform() throws Exception{
+		
+		StringBuilder sb = new StringBuilder("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=big5\"></head><body>");
+		for(int i = 0; i < 500; i++){
+			sb.append("<p>paragraph " + i + "</p>");
+		}
+		sb.append("</body></html>");
+		
+		final byte[] data = sb.toString().getBytes("Big5");
+		final Transform<String> t = new Transform<String>(String.class);
+		
+		bench("charsetTransform", 200, new Op() {
+			
+			@Override
+			public Object run(int i) {
+				return t.get(data);
+			}
+		});
+		
+	}
+	
+	public void testMultipartWrite() throws Exception{
+		
+		final Map<String, Object> params = new LinkedHashMap<String, Object>();
+		for(int i = 0; i < 10; i++){
+			params.put("field" + i, "value " + i);
+		}
+		params.put("photo", new byte[64 * 1024]);
+		
+		//the body is written to a plain stream, the upload progress is only counted on the connection stream
+		final Method multiLength = getPrivate("multiLength", Map.class);
+		final Method writeMulti = getPrivate("writeMulti", OutputStream.class, Map.class);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream(80 * 1024);
+		
+		bench("multipartWrite", 200, new Op() {
+			
+			@Override
+			public Object run(int i) throws Exception {
+				
+				os.reset();
+				
+				long length = (Long) multiLength.invoke(null, params);
+				writeMulti.invoke(null, os, params);
+				
+				return length + os.size();
+			}
+		});
+		
+	}
+	
+	public void testCookie() throws Exception{
+		
+		final AjaxCallback<String> cb = new AjaxCallback<String>();
+		for(int i = 0; i < 10; i++){
+			cb.cookie("cookie" + i, "value" + i);
+		}
+		
+		final Method makeCookie = getPrivate("makeCookie");
+		
+		bench("cookie", 20000, new Op() {
+			
+			@Override
+			public Object run(int i) throws Exception {
+				return makeCookie.invoke(cb);
+			}
+		});
+		
+	}
+	
+	//the request internals are reached by reflection, the invoke cost is part of the baseline too
+	private static Method getPrivate(String name, Class<?>... params) throws Exception{
+		Method method = AbstractAjaxCallback.class.getDeclaredMethod(name, params);
+		method.setAccessible(true);
+		return method;
+	}
+	
+}
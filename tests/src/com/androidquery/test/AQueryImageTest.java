@@ -1,8 +1,12 @@
 package com.androidquery.test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONException;
@@ -12,7 +16,11 @@ import com.androidquery.AQuery;
 import com.androidquery.callback.AjaxCallback;
 import com.androidquery.callback.AjaxStatus;
 import com.androidquery.callback.BitmapAjaxCallback;
+import com.androidquery.callback.Prefetch;
 import com.androidquery.util.AQUtility;
+import com.androidquery.util.BitmapCache;
+import com.androidquery.util.CacheStats;
+import com.androidquery.util.Common;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -21,6 +29,7 @@ import android.test.ActivityInstrumentationTestCase2;
 import android.test.UiThreadTest;
 import android.view.View;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.TextView;
 
 
@@ -169,6 +178,368 @@ public class AQueryImageTest extends AbstractTest<AQueryTestActivity> {
 		
     }
 	
+	public void testImageDownSampleVariants() {
+		
+		clearCache();
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				aq.id(R.id.image).image(LAND_URL, true, true, 400, 0);
+				aq.id(R.id.image2).image(LAND_URL, true, true, 100, 0);
+			}
+		});
+		
+		waitAsync(2000);
+		
+		assertLoaded(aq.id(R.id.image).getImageView(), true);
+		assertLoaded(aq.id(R.id.image2).getImageView(), true);
+		
+		Bitmap big = BitmapAjaxCallback.getMemoryCached(LAND_URL, 400);
+		assertNotNull(big);
+		
+		Bitmap small = BitmapAjaxCallback.getMemoryCached(LAND_URL, 100);		
+		assertNotNull(small);
+		assertTrue(small.getWidth() < 200);
+		
+		//a miss in the ui thread, derived from the 400 variant in the decode threads without decoding
+		assertNull(BitmapAjaxCallback.getMemoryCached(LAND_URL, 200));
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				aq.id(R.id.image2).image(LAND_URL, true, true, 200, 0);
+			}
+		});
+		
+		waitAsync(2000);
+		
+		Bitmap mid = BitmapAjaxCallback.getMemoryCached(LAND_URL, 200);
+		assertNotNull(mid);
+		assertTrue(mid.getWidth() < 400);
+		assertLoaded(aq.id(R.id.image2).getImageView(), true);
+		
+    }
+	
+	private LoopbackServer listServer;
+	private List<Integer> lookups = new ArrayList<Integer>();
+	
+	public String itemUrl(int position){
+		
+		lookups.add(position);
+		
+		if(position % 2 == 1) return null;
+		return listServer.getUrl("/image?item=" + position);
+	}
+	
+	public void testImageListPrefetch() throws Exception{
+		
+		clearCache();
+		
+		Bitmap bm = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
+		
+		listServer = new LoopbackServer().image(baos.toByteArray());
+		listServer.start();
+		
+		try{
+			
+			final ListView lv = new ListView(getActivity());
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					new AQuery(lv).prefetch(AQueryImageTest.this, "itemUrl", 0, 3);
+					Common common = (Common) lv.getTag(AQuery.TAG_SCROLL_LISTENER);
+					
+					//first 2 items visible, the next 3 are prefetched
+					common.onScroll(lv, 0, 2, 100);
+					assertEquals(3, lookups.size());
+					
+					//the window did not move, nothing is looked up again, not even items without an image
+					common.onScroll(lv, 0, 2, 100);
+					common.onScroll(lv, 0, 2, 100);
+					assertEquals(3, lookups.size());
+					
+					//scrolled down, only the new items are looked up
+					common.onScroll(lv, 1, 2, 100);
+				}
+			});
+			
+			assertTrue(lookups.size() > 3);
+			assertEquals(lookups.size(), new HashSet<Integer>(lookups).size());
+			
+			final int looked = lookups.size();
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					//items were added, the same positions may now hold other urls
+					Common common = (Common) lv.getTag(AQuery.TAG_SCROLL_LISTENER);
+					common.onScroll(lv, 1, 2, 120);
+				}
+			});
+			
+			assertTrue(lookups.size() > looked);
+			
+			waitAsync(2000);
+			
+			assertNotNull(BitmapAjaxCallback.getMemoryCached(listServer.getUrl("/image?item=2"), 0));
+			
+		}finally{
+			listServer.stop();
+		}
+		
+	}
+	
+	public void testImagePrefetchPromoted() throws Exception{
+		
+		clearCache();
+		
+		Bitmap bm = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
+		
+		listServer = new LoopbackServer().image(baos.toByteArray()).latency(1000);
+		listServer.start();
+		
+		try{
+			
+			final String url = itemUrl(10);
+			final long[] loaded = new long[1];
+			final long start = System.currentTimeMillis();
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					//both background threads are taken by other prefetches, the prefetch of the row waits behind them
+					BitmapAjaxCallback.prefetch(getActivity(), itemUrl(20), 0);
+					BitmapAjaxCallback.prefetch(getActivity(), itemUrl(22), 0);
+					BitmapAjaxCallback.prefetch(getActivity(), url, 0);
+					
+					BitmapAjaxCallback cb = new BitmapAjaxCallback(){
+						
+						@Override
+						protected void callback(String url, ImageView iv, Bitmap bm, AjaxStatus status){
+							loaded[0] = System.currentTimeMillis();
+							super.callback(url, iv, bm, status);
+						}
+						
+					};
+					
+					aq.id(R.id.image).image(cb.url(url));
+				}
+			});
+			
+			for(int i = 0; i < 40 && loaded[0] == 0; i++){
+				waitSec(100);
+			}
+			
+			//the visible row moved the joined fetch to the network threads instead of waiting for a free background thread
+			assertTrue(loaded[0] > 0);
+			assertTrue(loaded[0] - start < 1800);
+			assertLoaded(aq.id(R.id.image).getImageView(), true);
+			
+		}finally{
+			listServer.stop();
+		}
+		
+	}
+	
+	private List<AjaxStatus> prefetched = new ArrayList<AjaxStatus>();
+	
+	public void prefetchCb(String url, Bitmap bm, AjaxStatus status){
+		prefetched.add(status);
+	}
+	
+	public void testImagePrefetchHandler() throws Exception{
+		
+		clearCache();
+		
+		Bitmap bm = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
+		
+		listServer = new LoopbackServer().image(baos.toByteArray()).latency(500);
+		listServer.start();
+		
+		try{
+			
+			final String url = itemUrl(30);
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					//the second request joins the fetch of the first
+					new BitmapAjaxCallback().url(url).handler(AQueryImageTest.this, "prefetchCb").async(getActivity());
+					new BitmapAjaxCallback().url(url).handler(AQueryImageTest.this, "prefetchCb").async(getActivity());
+				}
+			});
+			
+			waitAsync(2000);
+			
+			assertEquals(2, prefetched.size());
+			assertEquals(200, prefetched.get(1).getCode());
+			
+			getInstrumentation().runOnMainSync(new Runnable() {
+				
+				@Override
+				public void run() {
+					new BitmapAjaxCallback().url(url).handler(AQueryImageTest.this, "prefetchCb").async(getActivity());
+				}
+			});
+			
+			assertEquals(3, prefetched.size());
+			assertEquals(AjaxStatus.MEMORY, prefetched.get(2).getSource());
+			
+		}finally{
+			listServer.stop();
+		}
+		
+	}
+	
+	public void testImagePrefetch() {
+		
+		clearCache();
+		
+		final Prefetch prefetch = new Prefetch().image(ICON_URL, 0).url(LAND_URL).maxCount(2);
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				aq.prefetch(prefetch);
+			}
+		});
+		
+		waitAsync(2000);
+		
+		assertTrue(prefetch.isDone());
+		assertEquals(2, prefetch.getCount());
+		assertTrue(prefetch.getBytes() > 0);
+		
+		Bitmap bm = BitmapAjaxCallback.getMemoryCached(ICON_URL, 0);
+		assertNotNull(bm);
+		
+		File file = aq.getCachedFile(LAND_URL);
+		assertNotNull(file);
+		
+		//landscape image is cached as file only
+		assertNull(BitmapAjaxCallback.getMemoryCached(LAND_URL, 0));
+		
+    }
+	
+	public void testImageMemoryHitKeepsDrawable() {
+		
+		clearCache();
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				aq.id(R.id.image).image(LAND_URL, true, true, 200, 0);
+			}
+		});
+		
+		waitAsync(2000);
+		
+		assertLoaded(aq.getImageView(), true);
+		
+		final Drawable d = aq.getImageView().getDrawable();
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				//memcache hit of the same bitmap reuses the current drawable
+				aq.id(R.id.image).image(LAND_URL, true, true, 200, 0);
+				assertSame(d, aq.getImageView().getDrawable());
+			}
+		});
+		
+		waitSec();
+		
+		assertSame(d, aq.getImageView().getDrawable());
+		
+    }
+	
+	public void testImageCacheStats() {
+		
+		clearCache();
+		CacheStats.reset();
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				aq.id(R.id.image).image(ICON_URL);
+			}
+		});
+		
+		waitAsync(2000);
+		
+		assertNotNull(aq.getCachedImage(ICON_URL));
+		
+		assertEquals(1, CacheStats.get(CacheStats.NETWORK).getHits());
+		assertEquals(1, CacheStats.get(CacheStats.FILE).getMisses());
+		assertEquals(1, CacheStats.get(CacheStats.FILE).getPuts());
+		assertTrue(CacheStats.get(CacheStats.FILE).getPutBytes() > 0);
+		
+		CacheStats small = CacheStats.get(CacheStats.BITMAP_SMALL);
+		assertTrue(small.getPuts() > 0);
+		assertTrue(small.getHits() > 0);
+		
+		//a lookup is counted once, a small tier hit is not a big tier miss
+		assertEquals(0, CacheStats.get(CacheStats.BITMAP_BIG).getMisses());
+		assertEquals(0, CacheStats.get(CacheStats.BITMAP_INVALID).getMisses());
+		
+		CacheStats memory = CacheStats.get(CacheStats.BITMAP);
+		assertTrue(memory.getMisses() > 0);
+		assertEquals(small.getHits(), memory.getHits());
+		assertTrue(memory.getHitRatio() > 0);
+		
+		CacheStats.reset();
+		assertEquals(0, CacheStats.snapshot().get(CacheStats.NETWORK).getHits());
+		
+	}
+	
+	public void testBitmapCacheStats() {
+		
+		CacheStats.reset();
+		CacheStats stats = CacheStats.get("test");
+		
+		BitmapCache cache = new BitmapCache(2, 100, 1000, stats);
+		
+		cache.put("a", Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+		cache.put("b", Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+		cache.put("c", Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+		
+		//over max pixels
+		cache.put("d", Bitmap.createBitmap(20, 20, Bitmap.Config.ARGB_8888));
+		
+		assertNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		
+		assertEquals(3, stats.getPuts());
+		assertEquals(1, stats.getRejections());
+		assertEquals(1, stats.getEvictions());
+		assertEquals(1, stats.getHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(400, stats.getHitBytes());
+		
+	}
+	
 	public void testImageFallback() {
 		
 		clearCache();
@@ -0,0 +1,343 @@
+package com.androidquery.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import com.androidquery.callback.AdaptiveLimit;
+import com.androidquery.callback.AjaxCallback;
+import com.androidquery.callback.AjaxStatus;
+import com.androidquery.callback.BitmapAjaxCallback;
+import com.androidquery.util.AQUtility;
+import com.androidquery.util.Histogram;
+
+import android.graphics.Bitmap;
+
+/**
+ * Throughput and tail latency of the ajax pipeline against a loopback server, without internet access.
+ *
+ * Each scenario logs requests/sec, p50/p99 latency, errors and peak heap.
+ *
+ */
+public class AQueryLoadTest extends AbstractTest<AQueryTestActivity> {
+	
+	private static final int REQUESTS = 2000;
+	
+	//overall time allowed for one load run
+	private static final long TIMEOUT = 5 * 60 * 1000;
+	
+	private LoopbackServer server;
+	
+	public AQueryLoadTest() {
+		super(AQueryTestActivity.class);
+    }
+	
+	@Override
+	protected void setUp() throws Exception {
+		
+		super.setUp();
+		
+		Bitmap bm = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bm.compress(Bitmap.CompressFormat.PNG, 100, baos);
+		
+		server = new LoopbackServer().latency(20).image(baos.toByteArray());
+		server.start();
+		
+		clearCache();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		
+		server.stop();
+		AjaxCallback.setAdaptiveNetworkLimit(0, 0);
+		AjaxCallback.setNetworkLimit(4);
+		
+		super.tearDown();
+	}
+	
+	private static class Result{
+		
+		private final Histogram latency = new Histogram();
+		private final AtomicInteger done = new AtomicInteger();
+		private final AtomicInteger errors = new AtomicInteger();
+		private final AtomicInteger missing = new AtomicInteger();
+		private volatile long peakHeap;
+		private int requests;
+		
+		//counts an empty result, asserted on the test thread instead of the callback
+		private void completed(AjaxStatus status, Object value){
+			
+			if(value == null){
+				missing.incrementAndGet();
+			}
+			
+			completed(status);
+		}
+		
+		private void completed(AjaxStatus status){
+			
+			latency.add(status.getDuration());
+			
+			if(status.getCode() != 200){
+				errors.incrementAndGet();
+			}
+			
+			if(done.incrementAndGet() == requests){
+				synchronized(this){
+					notifyAll();
+				}
+			}
+		}
+	}
+	
+	private interface Request{
+		void start(int i, Result result);
+	}
+	
+	private Result load(String name, final int requests, int limit, final Request request) throws Exception{
+		
+		AjaxCallback.setNetworkLimit(limit);
+		
+		final Result result = new Result();
+		result.requests = requests;
+		
+		Thread sampler = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				Runtime rt = Runtime.getRuntime();
+				
+				while(result.done.get() < requests){
+					result.peakHeap = Math.max(result.peakHeap, rt.totalMemory() - rt.freeMemory());
+					try{
+						Thread.sleep(20);
+					}catch(InterruptedException e){
+						break;
+					}
+				}
+			}
+		});
+		
+		long start = System.nanoTime();
+		
+		sampler.start();
+		
+		AQUtility.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				for(int i = 0; i < requests; i++){
+					request.start(i, result);
+				}
+			}
+		});
+		
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		
+		synchronized(result){
+			while(result.done.get() < requests){
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0){
+					sampler.interrupt();
+					fail("load " + name + " timed out with " + result.done.get() + " of " + requests + " requests done");
+				}
+				result.wait(left);
+			}
+		}
+		
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		
+		sampler.interrupt();
+		
+		long rps = requests * 1000L / Math.max(1, elapsed);
+		
+		AQUtility.debug("load " + name, "limit:" + limit + " rps:" + rps + " p50:" + result.latency.getPercentile(50) + " p99:" + result.latency.getPercentile(99)
+				+ " errors:" + result.errors.get() + " peakHeap:" + result.peakHeap / 1024 + "k");
+		
+		assertEquals(requests, result.latency.getCount());
+		
+		return result;
+	}
+	
+	private Request bytes(final int size, final boolean fileCache){
+		
+		return new Request() {
+			
+			@Override
+			public void start(int i, final Result load) {
+				
+				AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>(){
+					
+					@Override
+					public void callback(String url, byte[] data, AjaxStatus status) {
+						load.completed(status);
+					}
+				};
+				
+				cb.url(server.getUrl("/bytes/" + size + "?i=" + i)).type(byte[].class).fileCache(fileCache);
+				cb.async(getActivity());
+			}
+		};
+	}
+	
+	public void testLoadNetworkLimits() throws Exception{
+		
+		for(int limit: new int[]{2, 4, 8, 16}){
+			load("bytes 8k", REQUESTS, limit, bytes(8 * 1024, false));
+		}
+	
+	}
+	
+	public void testLoadFileCache() throws Exception{
+		
+		//first pass writes the file cache, second pass is served from it
+		load("file cache miss", REQUESTS, 8, bytes(8 * 1024, true));
+		waitSec(2000);
+		
+		int served = server.getServed();
+		Result result = load("file cache hit", REQUESTS, 8, bytes(8 * 1024, true));
+		
+		assertEquals(served, server.getServed());
+		assertEquals(0, result.errors.get());
+	
+	}
+	
+	public void testLoadGzipJson() throws Exception{
+		
+		server.gzip(true);
+		
+		Result result = load("gzip json", REQUESTS, 8, new Request() {
+			
+			@Override
+			public void start(int i, final Result load) {
+				
+				AjaxCallback<JSONObject> cb = new AjaxCallback<JSONObject>(){
+					
+					@Override
+					public void callback(String url, JSONObject jo, AjaxStatus status) {
+						load.completed(status, jo);
+					}
+				};
+				
+				cb.url(server.getUrl("/json/16384?i=" + i)).type(JSONObject.class);
+				cb.async(getActivity());
+			}
+		});
+		
+		assertEquals(0, result.missing.get());
+	
+	}
+	
+	public void testLoadSlowLink() throws Exception{
+		
+		//about 2G speed
+		server.latency(300).bandwidth(30 * 1024);
+		
+		for(int limit: new int[]{2, 8}){
+			load("slow link", 100, limit, bytes(16 * 1024, false));
+		}
+	
+	}
+	
+	public void testLoadAdaptiveFastLink() throws Exception{
+		
+		AjaxCallback.setAdaptiveNetworkLimit(2, 16);
+		
+		load("adaptive fast link", REQUESTS / 4, 16, bytes(8 * 1024, false));
+		
+		//no congestion, the limit grows from the min
+		assertTrue(AdaptiveLimit.getLimit("127.0.0.1") > 2);
+	
+	}
+	
+	public void testLoadAdaptiveSlowLink() throws Exception{
+		
+		//all downloads share a slow link
+		server.latency(300).bandwidth(64 * 1024).sharedBandwidth(true);
+		
+		load("shared slow link", 50, 16, bytes(8 * 1024, false));
+		
+		AjaxCallback.setAdaptiveNetworkLimit(1, 16);
+		
+		load("adaptive shared slow link", 50, 16, bytes(8 * 1024, false));
+		
+		//more downloads would only make each one slower
+		int limit = AdaptiveLimit.getLimit("127.0.0.1");
+		assertTrue(limit >= 1 && limit < 16);
+	
+	}
+	
+	public void testLoadAdaptiveAbortQueued() throws Exception{
+		
+		server.latency(500);
+		
+		AjaxCallback.setAdaptiveNetworkLimit(1, 1);
+		
+		List<AjaxCallback<byte[]>> cbs = new ArrayList<AjaxCallback<byte[]>>();
+		
+		for(int i = 0; i < 3; i++){
+			AjaxCallback<byte[]> cb = new AjaxCallback<byte[]>();
+			cb.url(server.getUrl("/bytes/16?i=" + i)).type(byte[].class);
+			cb.async(getActivity());
+			cbs.add(cb);
+		}
+		
+		waitSec(200);
+		
+		//the first is the only one in flight, the second is handed its slot after being aborted in the queue
+		cbs.get(1).abort();
+		
+		for(AjaxCallback<byte[]> cb: cbs){
+			cb.block();
+		}
+		
+		assertEquals(200, cbs.get(0).getStatus().getCode());
+		assertEquals("aborted", cbs.get(1).getStatus().getMessage());
+		assertEquals(200, cbs.get(2).getStatus().getCode());
+		assertEquals(2, server.getServed());
+	
+	}
+	
+	public void testLoadErrors() throws Exception{
+		
+		server.errorRate(0.1);
+		
+		Result result = load("errors", REQUESTS, 8, bytes(1024, false));
+		
+		assertTrue(result.errors.get() > 0);
+		assertTrue(result.errors.get() < REQUESTS);
+	
+	}
+	
+	public void imageCb(String url, Bitmap bm, AjaxStatus status){
+		imageResult.completed(status);
+	}
+	
+	private Result imageResult;
+	
+	public void testLoadImages() throws Exception{
+		
+		imageResult = null;
+		
+		load("images", REQUESTS, 8, new Request() {
+			
+			@Override
+			public void start(int i, Result result) {
+				
+				imageResult = result;
+				
+				BitmapAjaxCallback cb = new BitmapAjaxCallback();
+				cb.url(server.getUrl("/image?i=" + i)).targetWidth(100).fileCache(false).handler(AQueryLoadTest.this, "imageCb");
+				cb.async(getActivity());
+			}
+		});
+	
+	}
+
+}
@@ -1,11 +1,15 @@
 package com.androidquery.test;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -13,6 +17,7 @@ import com.androidquery.AQuery;
 import com.androidquery.callback.AjaxCallback;
 import com.androidquery.callback.AjaxStatus;
 import com.androidquery.util.AQUtility;
+import com.androidquery.util.Trace;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -69,6 +74,113 @@ public class AQueryMiscTest extends AbstractTest<AQueryTestActivity> {
 		
     }
 	
+	public String handled(String value){
+		return value;
+	}
+	
+	public String handledNoArgs(){
+		return "none";
+	}
+	
+	public void testInvokeHandler(){
+		
+		Class<?>[] sig = {String.class};
+		
+		//second round is served by the cached dispatch
+		for(int i = 0; i < 2; i++){
+			
+			assertEquals("hello", AQUtility.invokeHandler(this, "handled", true, true, sig, "hello"));
+			assertEquals("none", AQUtility.invokeHandler(this, "handledNoArgs", true, true, sig, "hello"));
+			assertNull(AQUtility.invokeHandler(this, "handledNoArgs", false, true, sig, "hello"));
+			assertNull(AQUtility.invokeHandler(this, "missing", true, true, sig, "hello"));
+		}
+		
+	}
+	
+	public void testPostFrame(){
+		
+		final List<Integer> order = new ArrayList<Integer>();
+		
+		for(int i = 0; i < 3; i++){
+			
+			final int n = i;
+			
+			AQUtility.postFrame(new Runnable() {
+				
+				@Override
+				public void run() {
+					assertTrue(AQUtility.isUIThread());
+					order.add(n);
+				}
+			});
+		}
+		
+		waitSec();
+		
+		assertEquals(Arrays.asList(0, 1, 2), order);
+		
+	}
+	
+	@UiThreadTest
+	public void testViewCache(){
+		
+		View image = getActivity().findViewById(R.id.image);
+		
+		aq.viewCache(true);
+		
+		assertSame(image, aq.id(R.id.image).getView());
+		assertSame(image, aq.id(R.id.image).getView());
+		
+		View root = image.getRootView();
+		
+		assertNotNull(root.getTag(AQuery.TAG_VIEW_CACHE));
+		
+		aq.recycle(root);
+		
+		//a recycled root starts with an empty cache
+		assertNull(root.getTag(AQuery.TAG_VIEW_CACHE));
+		
+		assertSame(image, aq.id(R.id.image).getView());
+		assertSame(image, aq.find(R.id.image).getView());
+		
+		aq.clearViewCache();
+		
+		assertSame(image, aq.id(R.id.image).getView());
+		
+	}
+	
+	public void testTrace() throws Exception{
+		
+		Trace.clear();
+		Trace.setEnabled(true);
+		
+		Trace.begin("work", Trace.AJAX, "hello");
+		Trace.end("work", Trace.AJAX);
+		
+		Trace.setEnabled(false);
+		
+		//not recorded
+		Trace.begin("ignored", Trace.AJAX, null);
+		
+		File file = new File(AQUtility.getCacheDir(getActivity()), "trace.json");
+		Trace.write(file);
+		
+		JSONObject jo = new JSONObject(new String(AQUtility.toBytes(new FileInputStream(file)), "UTF-8"));
+		JSONArray events = jo.getJSONArray("traceEvents");
+		
+		//thread name, begin and end
+		assertEquals(3, events.length());
+		assertEquals("M", events.getJSONObject(0).getString("ph"));
+		assertEquals("B", events.getJSONObject(1).getString("ph"));
+		assertEquals("hello", events.getJSONObject(1).getJSONObject("args").getString("arg"));
+		assertEquals("E", events.getJSONObject(2).getString("ph"));
+		assertEquals(events.getJSONObject(1).getLong("tid"), events.getJSONObject(2).getLong("tid"));
+		
+		file.delete();
+		Trace.clear();
+		
+	}
+	
 	public void testAdhoc(){
 		
 		String str = "eka_2322";
@@ -0,0 +1,84 @@
+package com.androidquery.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import com.androidquery.util.AQUtility;
+
+import android.app.Instrumentation;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+
+/**
+ * Measured values of the benchmark and allocation tests, kept per device model and sdk level
+ * in aquery/baseline on the external storage so they survive reinstalls and can be pulled with adb.
+ *
+ */
+public class Baselines {
+
+	public static final String RECORD = "record";
+	public static final String COMPARE = "compare";
+	
+	private File file;
+	private Properties values = new Properties();
+	
+	public Baselines(String name) throws IOException{
+		
+		String device = (Build.MODEL + "_" + Build.VERSION.SDK_INT).replaceAll("[^A-Za-z0-9_]", "_");
+		file = new File(Environment.getExternalStorageDirectory(), "aquery/baseline/" + name + "_" + device + ".properties");
+		
+		if(file.exists()){
+			InputStream is = new FileInputStream(file);
+			try{
+				values.load(is);
+			}finally{
+				AQUtility.close(is);
+			}
+		}
+	}
+	
+	//the value of an instrumentation argument, as passed with am instrument -e name value
+	public static String getArgument(Instrumentation inst, String name){
+		
+		//InstrumentationTestRunner.getArguments is api 8, the test project targets api 7
+		Bundle args = (Bundle) AQUtility.invokeHandler(inst, "getArguments", false, false, new Class[]{});
+		if(args == null) return null;
+		
+		return args.getString(name);
+	}
+	
+	public File getFile(){
+		return file;
+	}
+	
+	public long get(String key){
+		
+		String value = values.getProperty(key);
+		if(value == null) return -1;
+		
+		return Long.parseLong(value);
+	}
+	
+	public void put(String key, long value){
+		values.setProperty(key, Long.toString(value));
+	}
+	
+	public void save(String comment) throws IOException{
+		
+		file.getParentFile().mkdirs();
+		
+		OutputStream os = new FileOutputStream(file);
+		try{
+			values.store(os, comment + ", " + Build.MODEL + " sdk " + Build.VERSION.SDK_INT);
+		}finally{
+			AQUtility.close(os);
+		}
+	}
+	
+}
@@ -0,0 +1,489 @@
+package com.androidquery.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.androidquery.util.AQUtility;
+
+/**
+ * A minimal keep-alive http server on the loopback interface, standing in for the network in load tests.
+ *
+ * Paths:
+ * /bytes/{size} returns size bytes of binary data.
+ * /json/{size} returns a json object of about size bytes.
+ * /image returns the image set with image(byte[]).
+ * /echo returns the decoded request body.
+ * /batch serves a json batch of the paths above, in the format of JsonBatchFormat.
+ *
+ * Query strings are ignored, so they can be used to make urls unique.
+ *
+ */
+public class LoopbackServer implements Runnable{
+	
+	private ServerSocket server;
+	private ExecutorService exe;
+	
+	private volatile long latency;
+	private volatile long bandwidth;
+	private volatile boolean shared;
+	private volatile boolean gzip;
+	private volatile boolean deflate;
+	private volatile String requestEncoding;
+	private volatile double errorRate;
+	private volatile byte[] image;
+	
+	private final Random random = new Random(1);
+	private final Object link = new Object();
+	private final AtomicInteger served = new AtomicInteger();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicInteger batches = new AtomicInteger();
+	private final AtomicInteger connections = new AtomicInteger();
+	
+	/**
+	 * Delay before each response is sent, in millseconds.
+	 */
+	public LoopbackServer latency(long latency){
+		this.latency = latency;
+		return this;
+	}
+	
+	/**
+	 * Bytes per second for each response body, 0 for unlimited.
+	 */
+	public LoopbackServer bandwidth(long bandwidth){
+		this.bandwidth = bandwidth;
+		return this;
+	}
+	
+	/**
+	 * Share the bandwidth among all responses, like a single slow link, instead of limiting each response.
+	 */
+	public LoopbackServer sharedBandwidth(boolean shared){
+		this.shared = shared;
+		return this;
+	}
+	
+	/**
+	 * Gzip response bodies when the client accepts gzip.
+	 */
+	public LoopbackServer gzip(boolean gzip){
+		this.gzip = gzip;
+		return this;
+	}
+	
+	/**
+	 * Deflate response bodies when the client accepts deflate and gzip is not used.
+	 */
+	public LoopbackServer deflate(boolean deflate){
+		this.deflate = deflate;
+		return this;
+	}
+	
+	/**
+	 * Ratio of requests that fail with 500, from 0 to 1.
+	 */
+	public LoopbackServer errorRate(double errorRate){
+		this.errorRate = errorRate;
+		return this;
+	}
+	
+	public LoopbackServer image(byte[] image){
+		this.image = image;
+		return this;
+	}
+	
+	public void start() throws IOException{
+		
+		server = new ServerSocket(0, 256, InetAddress.getByName("127.0.0.1"));
+		exe = Executors.newCachedThreadPool();
+		
+		Thread thread = new Thread(this, "loopback-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void stop(){
+		
+		try{
+			server.close();
+		}catch(IOException e){
+		}
+		
+		exe.shutdownNow();
+	}
+	
+	public String getUrl(String path){
+		return "http://127.0.0.1:" + server.getLocalPort() + path;
+	}
+	
+	public int getServed(){
+		return served.get();
+	}
+	
+	/**
+	 * Number of connections accepted.
+	 */
+	public int getConnections(){
+		return connections.get();
+	}
+	
+	/**
+	 * Number of batch requests served.
+	 */
+	public int getBatches(){
+		return batches.get();
+	}
+	
+	/**
+	 * Content-Encoding of the last request body received, null if not encoded.
+	 */
+	public String getRequestEncoding(){
+		return requestEncoding;
+	}
+	
+	/**
+	 * Total bytes of request bodies received.
+	 */
+	public long getReceived(){
+		return received.get();
+	}
+	
+	@Override
+	public void run(){
+		
+		while(!server.isClosed()){
+			
+			try{
+				final Socket socket = server.accept();
+				connections.incrementAndGet();
+				
+				exe.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						handle(socket);
+					}
+				});
+			
+			}catch(IOException e){
+				//closed
+			}
+		}
+	}
+	
+	private void handle(Socket socket){
+		
+		try{
+			
+			socket.setTcpNoDelay(true);
+			
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+			
+			while(true){
+				
+				String line = readLine(in);
+				if(line == null || line.length() == 0) break;
+				
+				String[] parts = line.split(" ");
+				if(parts.length < 2) break;
+				
+				String path = parts[1];
+				int query = path.indexOf('?');
+				if(query >= 0) path = path.substring(0, query);
+				
+				int length = 0;
+				boolean acceptGzip = false;
+				boolean acceptDeflate = false;
+				String contentEncoding = null;
+				boolean close = false;
+				boolean chunked = false;
+				
+				String header;
+				while((header = readLine(in)) != null && header.length() > 0){
+					
+					int index = header.indexOf(':');
+					if(index < 0) continue;
+					
+					String name = header.substring(0, index).trim();
+					String value = header.substring(index + 1).trim();
+					
+					if(name.equalsIgnoreCase("Content-Length")){
+						length = Integer.parseInt(value);
+					}else if(name.equalsIgnoreCase("Accept-Encoding")){
+						acceptGzip = value.contains("gzip");
+						acceptDeflate = value.contains("deflate");
+					}else if(name.equalsIgnoreCase("Content-Encoding")){
+						contentEncoding = value;
+					}else if(name.equalsIgnoreCase("Connection")){
+						close = value.equalsIgnoreCase("close");
+					}else if(name.equalsIgnoreCase("Transfer-Encoding")){
+						chunked = value.equalsIgnoreCase("chunked");
+					}
+				}
+				
+				//discard request body, or keep it for echo
+				ByteArrayOutputStream body = path.equals("/echo") || path.equals("/batch") ? new ByteArrayOutputStream() : null;
+				
+				if(chunked){
+					
+					int size;
+					while((size = Integer.parseInt(readLine(in).trim(), 16)) > 0){
+						skip(in, size, body);
+						readLine(in);
+					}
+					
+					readLine(in);
+					
+				}else{
+					skip(in, length, body);
+				}
+				
+				byte[] requestBody = null;
+				if(body != null){
+					requestBody = decode(body.toByteArray(), contentEncoding);
+				}
+				
+				requestEncoding = contentEncoding;
+				
+				String encoding = null;
+				if(acceptGzip && gzip){
+					encoding = "gzip";
+				}else if(acceptDeflate && deflate){
+					encoding = "deflate";
+				}
+				
+				respond(out, path, encoding, requestBody);
+				served.incrementAndGet();
+				
+				if(close) break;
+			}
+		
+		}catch(Exception e){
+			AQUtility.debug(e);
+		}finally{
+			try{
+				socket.close();
+			}catch(IOException e){
+			}
+		}
+	
+	}
+	
+	private void respond(OutputStream out, String path, String encoding, byte[] requestBody) throws Exception{
+		
+		if(latency > 0){
+			Thread.sleep(latency);
+		}
+		
+		int code = 200;
+		String type = "application/octet-stream";
+		byte[] body;
+		
+		boolean error;
+		synchronized(random){
+			error = random.nextDouble() < errorRate;
+		}
+		
+		if(error){
+			code = 500;
+			body = "error".getBytes("UTF-8");
+			encoding = null;
+		}else if(path.equals("/echo") && requestBody != null){
+			body = requestBody;
+		}else if(path.equals("/batch") && requestBody != null){
+			type = "application/json";
+			body = makeBatch(requestBody);
+		}else{
+			
+			body = makeBody(path);
+			
+			if(path.startsWith("/json/")){
+				type = "application/json";
+			}else if(path.equals("/image")){
+				type = "image/png";
+			}
+			
+			if(body == null){
+				code = 404;
+				body = "not found".getBytes("UTF-8");
+				encoding = null;
+			}
+		}
+		
+		if(encoding != null){
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DeflaterOutputStream dos = encoding.equals("gzip") ? new GZIPOutputStream(baos) : new DeflaterOutputStream(baos);
+			dos.write(body);
+			dos.close();
+			body = baos.toByteArray();
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(code).append(code == 200 ? " OK" : " Error").append("\r\n");
+		sb.append("Content-Type: ").append(type).append("\r\n");
+		sb.append("Content-Length: ").append(body.length).append("\r\n");
+		if(encoding != null) sb.append("Content-Encoding: ").append(encoding).append("\r\n");
+		sb.append("\r\n");
+		
+		out.write(sb.toString().getBytes("US-ASCII"));
+		
+		writeThrottled(out, body);
+		out.flush();
+	}
+	
+	private byte[] makeBody(String path) throws IOException{
+		
+		if(path.startsWith("/bytes/")){
+			return makeBytes(Integer.parseInt(path.substring(7)));
+		}else if(path.startsWith("/json/")){
+			return makeJson(Integer.parseInt(path.substring(6)));
+		}else if(path.equals("/image")){
+			return image;
+		}
+		
+		return null;
+	}
+	
+	//json batch format, see JsonBatchFormat
+	private byte[] makeBatch(byte[] requestBody) throws Exception{
+		
+		JSONArray requests = new JSONArray(new String(requestBody, "UTF-8"));
+		JSONArray responses = new JSONArray();
+		
+		for(int i = 0; i < requests.length(); i++){
+			
+			String path = requests.getJSONObject(i).getString("relative_url");
+			int query = path.indexOf('?');
+			if(query >= 0) path = path.substring(0, query);
+			
+			byte[] body = makeBody(path);
+			
+			JSONObject response = new JSONObject();
+			response.put("code", body == null ? 404 : 200);
+			response.put("body", body == null ? "not found" : new String(body, "UTF-8"));
+			responses.put(response);
+		}
+		
+		batches.incrementAndGet();
+		
+		return responses.toString().getBytes("UTF-8");
+	}
+	
+	private void writeThrottled(OutputStream out, byte[] body) throws Exception{
+		
+		long bw = bandwidth;
+		
+		if(bw <= 0){
+			out.write(body);
+			return;
+		}
+		
+		int chunk = 4096;
+		
+		for(int offset = 0; offset < body.length; offset += chunk){
+			
+			int len = Math.min(chunk, body.length - offset);
+			
+			if(shared){
+				//one chunk on the link at a time
+				synchronized(link){
+					out.write(body, offset, len);
+					out.flush();
+					Thread.sleep(len * 1000L / bw);
+				}
+			}else{
+				out.write(body, offset, len);
+				out.flush();
+				Thread.sleep(len * 1000L / bw);
+			}
+		}
+	}
+	
+	private static byte[] makeBytes(int size){
+		
+		byte[] result = new byte[size];
+		for(int i = 0; i < size; i++){
+			result[i] = (byte) (i % 251);
+		}
+		return result;
+	}
+	
+	private static byte[] makeJson(int size) throws IOException{
+		
+		StringBuilder sb = new StringBuilder("{\"items\":[");
+		int i = 0;
+		while(sb.length() < size - 2){
+			if(i > 0) sb.append(",");
+			sb.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"}");
+			i++;
+		}
+		sb.append("]}");
+		
+		return sb.toString().getBytes("UTF-8");
+	}
+	
+	private void skip(InputStream in, long count, OutputStream sink) throws IOException{
+		
+		byte[] buf = new byte[4096];
+		
+		while(count > 0){
+			int read = in.read(buf, 0, (int) Math.min(buf.length, count));
+			if(read < 0) return;
+			if(sink != null) sink.write(buf, 0, read);
+			count -= read;
+			received.addAndGet(read);
+		}
+	}
+	
+	private static byte[] decode(byte[] data, String encoding) throws IOException{
+		
+		if(encoding == null) return data;
+		
+		InputStream is = new ByteArrayInputStream(data);
+		is = encoding.equals("gzip") ? new GZIPInputStream(is) : new InflaterInputStream(is);
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while((read = is.read(buf)) != -1){
+			baos.write(buf, 0, read);
+		}
+		
+		return baos.toByteArray();
+	}
+	
+	private static String readLine(InputStream in) throws IOException{
+		
+		StringBuilder sb = new StringBuilder();
+		
+		int c;
+		while((c = in.read()) >= 0){
+			if(c == '\n') return sb.toString();
+			if(c != '\r') sb.append((char) c);
+		}
+		
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+}